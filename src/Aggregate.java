@@ -0,0 +1,162 @@
+/**
+ * Aggregate function of a select list, e.g. "count(*)" or "sum(salary)",
+ * with its running value. Records are added one at a time as a cursor
+ * reads them, so an aggregate takes the same memory for any number of
+ * records. NULL values are skipped, an aggregate over no values is NULL
+ * except for COUNT.
+ */
+public final class Aggregate {
+
+	private enum Function {
+		COUNT, SUM, MIN, MAX, AVG
+	}
+
+	private final String name;
+	private final Function function;
+	/* 0 based column index, 0 is the rowid, -1 for COUNT(*). */
+	private final int column;
+	private final DataTypes type;
+
+	private long count = 0;
+	private long longValue = 0;
+	private double doubleValue = 0;
+	private String textValue = null;
+
+	private Aggregate(String name, Function function, int column, DataTypes type) {
+		this.name = name;
+		this.function = function;
+		this.column = column;
+		this.type = type;
+	}
+
+	/**
+	 * Whether the select list item is an aggregate function call.
+	 */
+	public static boolean isAggregate(String item) {
+		String call = item.replace(" ", "");
+		int open = call.indexOf('(');
+		if (open == -1 || !call.endsWith(")"))
+			return false;
+		try {
+			Function.valueOf(call.substring(0, open).toUpperCase());
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	public static Aggregate parse(String item, TableSchema schema) throws Exception {
+		String call = item.replace(" ", "").toLowerCase();
+		int open = call.indexOf('(');
+		Function function = Function.valueOf(call.substring(0, open).toUpperCase());
+		String argument = call.substring(open + 1, call.length() - 1);
+		if (argument.equals("*")) {
+			if (function != Function.COUNT)
+				throw new Exception("Only COUNT can take *.");
+			return new Aggregate(call, function, -1, null);
+		}
+		int column = schema.getColumnIndex(argument);
+		if (column == -1)
+			throw new Exception("Could not find column '" + argument + "'");
+		DataTypes type = schema.getType(column);
+		if ((function == Function.SUM || function == Function.AVG) && type == DataTypes.TEXT)
+			throw new Exception("Can not " + function + " the text column '" + argument + "'");
+		return new Aggregate(call, function, column, type);
+	}
+
+	/**
+	 * Same function on the same column, without any values added yet.
+	 */
+	public Aggregate fresh() {
+		return new Aggregate(name, function, column, type);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * The payload column the aggregate reads, -1 for the rowid or none.
+	 */
+	public int getPayloadColumn() {
+		return column - 1;
+	}
+
+	/**
+	 * COUNT(*) only counts records, it reads no column.
+	 */
+	public boolean isCountAll() {
+		return column == -1;
+	}
+
+	/**
+	 * Sets the count of COUNT(*) without adding the records one by one.
+	 */
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	public void add(RecordCell record) {
+		if (column == -1) {
+			count++;
+			return;
+		}
+		if (column == 0) {
+			addLong(record.getRowId());
+			return;
+		}
+		PayLoad payload = record.getPayload();
+		int i = column - 1;
+		if (payload.isNull(i))
+			return;
+		if (type == DataTypes.TEXT)
+			addText(payload.getText(i));
+		else if (type.isDouble())
+			addDouble(payload.getDouble(i));
+		else
+			addLong(payload.getLong(i));
+	}
+
+	private void addLong(long value) {
+		if (count == 0 || function == Function.MIN && value < longValue || function == Function.MAX && value > longValue)
+			longValue = value;
+		else if (function == Function.SUM || function == Function.AVG)
+			longValue += value;
+		count++;
+	}
+
+	private void addDouble(double value) {
+		if (count == 0 || function == Function.MIN && value < doubleValue
+				|| function == Function.MAX && value > doubleValue)
+			doubleValue = value;
+		else if (function == Function.SUM || function == Function.AVG)
+			doubleValue += value;
+		count++;
+	}
+
+	private void addText(String value) {
+		if (count == 0 || function == Function.MIN && value.compareTo(textValue) < 0
+				|| function == Function.MAX && value.compareTo(textValue) > 0)
+			textValue = value;
+		count++;
+	}
+
+	/**
+	 * Formats the value of the aggregate for display.
+	 */
+	public String getString() {
+		if (function == Function.COUNT)
+			return Long.toString(count);
+		if (count == 0)
+			return "null";
+		if (function == Function.AVG)
+			return String.valueOf((type.isDouble() ? doubleValue : (double) longValue) / count);
+		if (type == DataTypes.TEXT)
+			return textValue;
+		if (type.isDouble())
+			return type == DataTypes.REAL && function == Function.SUM ? String.valueOf(doubleValue)
+					: type.formatDouble(doubleValue);
+		// the sum of dates is a number, not a date
+		return function == Function.SUM ? Long.toString(longValue) : type.formatLong(longValue);
+	}
+}
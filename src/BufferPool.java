@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Process wide cache of table pages, keyed by (file, page number).
+ *
+ * Pages are read from the file as a whole and stay in memory until the memory
+ * budget is used up, at which point unpinned pages are evicted with the CLOCK
+ * policy.
+ *
+ * Changes are made durable by commit, which logs the images of the changed
+ * pages to the WriteAheadLog. A dirty page is written back to its file only
+ * after it was committed, on eviction or at a checkpoint; pages with changes
+ * that are not committed yet are never evicted.
+ */
+public class BufferPool {
+
+	/* Memory budget for cached pages, 8 MB by default. */
+	private static long capacity = 8 * 1024 * 1024;
+	private static long usedBytes = 0;
+
+	private static final Map<String, Map<Integer, Page>> pages = new HashMap<>();
+	private static final Map<String, FileChannel> channels = new HashMap<>();
+	private static final Map<String, Integer> pageCounts = new HashMap<>();
+
+	/* A checkpoint is taken once the log has grown past this size. */
+	private static final long CHECKPOINT_SIZE = 4 * 1024 * 1024;
+
+	/* Pages changed since the last commit. */
+	private static final Set<Page> changed = new LinkedHashSet<>();
+
+	/* Frames in clock order, the hand points at the next eviction candidate. */
+	private static final List<Page> clock = new ArrayList<>();
+	private static int clockHand = 0;
+
+	public static synchronized void setCapacity(long bytes) {
+		capacity = bytes;
+	}
+
+	public static synchronized long getCapacity() {
+		return capacity;
+	}
+
+	public static synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Returns the page pinned, reading it from the file if it is not cached.
+	 * Pages past the end of the file are zero filled. Every pin must be matched
+	 * by an unpin.
+	 */
+	public static synchronized Page pin(String fileName, int pageNumber, int pageSize) throws IOException {
+		Map<Integer, Page> filePages = pages.computeIfAbsent(fileName, k -> new HashMap<>());
+		Page page = filePages.get(pageNumber);
+		if (page == null) {
+			makeRoom(pageSize);
+			ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+			FileChannel channel = channel(fileName);
+			long position = position(pageNumber, pageSize);
+			while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0)
+				;
+			buffer.clear();
+
+			page = new Page(fileName, pageNumber, buffer);
+			filePages.put(pageNumber, page);
+			clock.add(page);
+			usedBytes += pageSize;
+		}
+		page.pin();
+		return page;
+	}
+
+	public static synchronized void unpin(Page page) {
+		page.unpin();
+		if (page.isUnlogged())
+			changed.add(page);
+	}
+
+	public static synchronized int pageCount(String fileName, int pageSize) throws IOException {
+		Integer count = pageCounts.get(fileName);
+		if (count == null) {
+			count = (int) (channel(fileName).size() / pageSize);
+			pageCounts.put(fileName, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Appends a zero filled page to the file and returns its page number. The
+	 * file itself only grows when the page is written back.
+	 */
+	public static synchronized int allocatePage(String fileName, int pageSize) throws IOException {
+		int pageNumber = pageCount(fileName, pageSize);
+		pageCounts.put(fileName, pageNumber + 1);
+		Page page = pin(fileName, pageNumber, pageSize);
+		page.markDirty();
+		unpin(page);
+		return pageNumber;
+	}
+
+	/**
+	 * Empties the file and drops any of its pages from the pool.
+	 */
+	public static synchronized void truncate(String fileName) throws IOException {
+		dropPages(fileName);
+		channel(fileName).truncate(0);
+		pageCounts.put(fileName, 0);
+	}
+
+	/**
+	 * Commits the changes of every page changed since the last commit, it
+	 * returns once their images are on disk in the log. Pages the log does
+	 * not cover are written straight back to their files. Inside a
+	 * Transaction nothing is committed until it ends.
+	 */
+	public static void commit() throws IOException {
+		if (Transaction.isActive())
+			return;
+		synchronized (BufferPool.class) {
+			for (Page page : changed) {
+				if (WriteAheadLog.covers(page)) {
+					WriteAheadLog.log(page);
+				} else {
+					writeBack(page);
+					page.markLogged();
+				}
+			}
+			changed.clear();
+		}
+		// forced outside of the pool lock, so other statements can log meanwhile
+		WriteAheadLog.commit();
+		if (WriteAheadLog.size() > CHECKPOINT_SIZE)
+			checkpoint();
+	}
+
+	/**
+	 * Restores the content of every page changed since the last commit.
+	 */
+	public static void rollback() {
+		List<Page> pages;
+		synchronized (BufferPool.class) {
+			pages = new ArrayList<>(changed);
+			changed.clear();
+		}
+		// outside of the pool lock, a reader may hold a page latch and wait to pin the next page
+		for (Page page : pages)
+			page.rollback();
+	}
+
+	/**
+	 * Writes every committed dirty page back to its file and forces the files,
+	 * after which the log is no longer needed and is emptied. It is skipped
+	 * while some page has changes that are not committed.
+	 */
+	public static synchronized void checkpoint() throws IOException {
+		if (!changed.isEmpty())
+			return;
+		for (String fileName : pages.keySet())
+			flush(fileName);
+		MappedPageStore.forceAll();
+		WriteAheadLog.truncate();
+	}
+
+	/**
+	 * Writes back the dirty pages of the file and forces it to disk.
+	 */
+	private static void flush(String fileName) throws IOException {
+		Map<Integer, Page> filePages = pages.get(fileName);
+		if (filePages == null)
+			return;
+		boolean written = false;
+		for (Page page : filePages.values()) {
+			written |= page.isDirty();
+			writeBack(page);
+		}
+		if (written)
+			channel(fileName).force(false);
+	}
+
+	/**
+	 * Commits, then writes back and drops every page of the file and closes
+	 * its channel.
+	 */
+	public static void close(String fileName) throws IOException {
+		commit();
+		synchronized (BufferPool.class) {
+			flush(fileName);
+			discard(fileName);
+		}
+	}
+
+	/**
+	 * Drops every page of the file without writing it back, used when the file
+	 * is about to be deleted.
+	 */
+	public static synchronized void discard(String fileName) throws IOException {
+		dropPages(fileName);
+		pageCounts.remove(fileName);
+		FileChannel channel = channels.remove(fileName);
+		if (channel != null)
+			channel.close();
+	}
+
+	public static void closeAll() throws IOException {
+		commit();
+		checkpoint();
+		for (String fileName : new ArrayList<>(channels.keySet()))
+			close(fileName);
+	}
+
+	private static long position(int pageNumber, int pageSize) {
+		return (long) pageNumber * pageSize;
+	}
+
+	private static FileChannel channel(String fileName) throws IOException {
+		FileChannel channel = channels.get(fileName);
+		if (channel == null) {
+			channel = new RandomAccessFile(fileName, "rw").getChannel();
+			channels.put(fileName, channel);
+		}
+		return channel;
+	}
+
+	private static void writeBack(Page page) throws IOException {
+		if (!page.isDirty())
+			return;
+		// the commit of the page may not be forced yet, see WriteAheadLog.awaitCommit
+		if (WriteAheadLog.covers(page))
+			WriteAheadLog.syncCommitted();
+		ByteBuffer buffer = page.getBuffer().duplicate();
+		buffer.clear();
+		long position = position(page.getPageNumber(), page.getSize());
+		FileChannel channel = channel(page.getFileName());
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+		page.markClean();
+	}
+
+	private static void makeRoom(int size) throws IOException {
+		int scanned = 0;
+		while (usedBytes + size > capacity && !clock.isEmpty()) {
+			// every frame is pinned, go over the budget rather than fail
+			if (scanned > 2 * clock.size())
+				return;
+			if (clockHand >= clock.size())
+				clockHand = 0;
+			Page page = clock.get(clockHand);
+			if (page.isPinned() || (page.isUnlogged() && WriteAheadLog.covers(page))) {
+				// pages with changes that are not committed stay in memory
+				clockHand++;
+			} else if (page.isReferenced()) {
+				page.setReferenced(false);
+				clockHand++;
+			} else {
+				writeBack(page);
+				changed.remove(page);
+				pages.get(page.getFileName()).remove(page.getPageNumber());
+				removeFrame(clockHand);
+			}
+			scanned++;
+		}
+	}
+
+	private static void dropPages(String fileName) {
+		Map<Integer, Page> filePages = pages.remove(fileName);
+		if (filePages == null)
+			return;
+		changed.removeAll(filePages.values());
+		for (int i = clock.size() - 1; i >= 0; i--)
+			if (clock.get(i).getFileName().equals(fileName))
+				removeFrame(i);
+	}
+
+	private static void removeFrame(int index) {
+		Page page = clock.get(index);
+		usedBytes -= page.getSize();
+		// move the last frame into the hole, keeps removal O(1)
+		Page last = clock.remove(clock.size() - 1);
+		if (index < clock.size())
+			clock.set(index, last);
+	}
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+
+/**
+ * Default PageStore, serves pages from the shared BufferPool.
+ */
+public class BufferedPageStore implements PageStore {
+
+	private final String fileName;
+	private final int pageSize;
+
+	public BufferedPageStore(String fileName, int pageSize) {
+		this.fileName = fileName;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public Page pin(int pageNumber) throws IOException {
+		return BufferPool.pin(fileName, pageNumber, pageSize);
+	}
+
+	@Override
+	public void unpin(Page page) {
+		BufferPool.unpin(page);
+	}
+
+	@Override
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	@Override
+	public int getPageCount() throws IOException {
+		return BufferPool.pageCount(fileName, pageSize);
+	}
+
+	@Override
+	public int allocatePage() throws IOException {
+		return BufferPool.allocatePage(fileName, pageSize);
+	}
+
+	@Override
+	public void truncate() throws IOException {
+		BufferPool.truncate(fileName);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		BufferPool.commit();
+	}
+
+	@Override
+	public void close() throws IOException {
+		BufferPool.close(fileName);
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.*;
+
+/**
+ * In memory copy of davisbase_columns and davisbase_indexes. Schemas and index
+ * definitions are loaded once at startup and reloaded for a single table after
+ * it is created, dropped or indexed, so opening a table does not scan the
+ * catalog.
+ */
+public class Catalog {
+
+	public static final String PATH = "data/catalog";
+
+	private static final Map<String, TableSchema> schemas = new HashMap<>();
+	/* table name -> (index name -> column name) */
+	private static final Map<String, Map<String, String>> indexes = new HashMap<>();
+
+	/* The meta tables describe themselves, their schema is fixed. */
+	private static final TableSchema TABLES_SCHEMA;
+	private static final TableSchema COLUMNS_SCHEMA;
+	private static final TableSchema INDEXES_SCHEMA;
+
+	static {
+		try {
+			TABLES_SCHEMA = new TableSchema("davisbase_tables", Arrays.asList(
+					new ColumnDetails("rowid", "int", 1, false), new ColumnDetails("table_name", "text", 2, false)));
+			COLUMNS_SCHEMA = new TableSchema("davisbase_columns", Arrays.asList(
+					new ColumnDetails("rowid", "int", 1, false), new ColumnDetails("table_name", "text", 2, false),
+					new ColumnDetails("column_name", "text", 3, false), new ColumnDetails("data_type", "text", 4, false),
+					new ColumnDetails("ordinal_position", "int", 5, false),
+					new ColumnDetails("is_nullable", "text", 6, false)));
+			INDEXES_SCHEMA = new TableSchema("davisbase_indexes", Arrays.asList(
+					new ColumnDetails("rowid", "int", 1, false), new ColumnDetails("index_name", "text", 2, false),
+					new ColumnDetails("table_name", "text", 3, false),
+					new ColumnDetails("column_name", "text", 4, false)));
+		} catch (UnknownDataTypeException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Reads the schema and the indexes of every table from the catalog.
+	 */
+	public static synchronized void load() throws Exception {
+		schemas.clear();
+		for (Map.Entry<String, List<ColumnDetails>> entry : readColumns(new String[0]).entrySet())
+			schemas.put(entry.getKey(), new TableSchema(entry.getKey(), entry.getValue()));
+		indexes.clear();
+		for (String tableName : schemas.keySet())
+			indexes.put(tableName, new LinkedHashMap<>());
+		indexes.putAll(readIndexes(new String[0]));
+	}
+
+	/**
+	 * Returns the schema of the table, or null if the catalog does not know it.
+	 */
+	public static synchronized TableSchema getSchema(String tableName) throws Exception {
+		if (tableName.equalsIgnoreCase("davisbase_tables"))
+			return TABLES_SCHEMA;
+		if (tableName.equalsIgnoreCase("davisbase_columns"))
+			return COLUMNS_SCHEMA;
+		if (tableName.equalsIgnoreCase("davisbase_indexes"))
+			return INDEXES_SCHEMA;
+
+		TableSchema schema = schemas.get(tableName);
+		if (schema == null) {
+			List<ColumnDetails> columns = readColumns(new String[] { "table_name", "=", tableName }).get(tableName);
+			if (columns == null)
+				return null;
+			schema = new TableSchema(tableName, columns);
+			schemas.put(tableName, schema);
+		}
+		return schema;
+	}
+
+	/**
+	 * Returns the indexes of the table as index name -> column name, the meta
+	 * tables are not indexed.
+	 */
+	public static synchronized Map<String, String> getIndexes(String tableName) throws Exception {
+		if (tableName.startsWith("davisbase_"))
+			return Collections.emptyMap();
+
+		Map<String, String> tableIndexes = indexes.get(tableName);
+		if (tableIndexes == null) {
+			tableIndexes = readIndexes(new String[] { "table_name", "=", tableName }).get(tableName);
+			if (tableIndexes == null)
+				tableIndexes = new LinkedHashMap<>();
+			indexes.put(tableName, tableIndexes);
+		}
+		return Collections.unmodifiableMap(tableIndexes);
+	}
+
+	/**
+	 * Forgets the schema and indexes of the table, called when it is created,
+	 * dropped or indexed.
+	 */
+	public static synchronized void invalidate(String tableName) {
+		schemas.remove(tableName);
+		indexes.remove(tableName);
+	}
+
+	private static Map<String, Map<String, String>> readIndexes(String[] condition) throws Exception {
+		Map<Integer, RecordCell> records;
+		Table metaIndex = TableManager.acquire(PATH, "davisbase_indexes");
+		try {
+			records = metaIndex.selectRecords(new String[] { "*" }, condition);
+		} finally {
+			TableManager.release(metaIndex);
+		}
+		Map<String, Map<String, String>> tables = new HashMap<>();
+		for (RecordCell rec : records.values()) {
+			PayLoad indexData = rec.getPayload();
+			tables.computeIfAbsent(indexData.getText(1), k -> new LinkedHashMap<>()).put(indexData.getText(0),
+					indexData.getText(2));
+		}
+		return tables;
+	}
+
+	private static Map<String, List<ColumnDetails>> readColumns(String[] condition) throws Exception {
+		Map<Integer, RecordCell> records;
+		Table metaCol = TableManager.acquire(PATH, "davisbase_columns");
+		try {
+			records = metaCol.selectRecords(new String[] { "*" }, condition);
+		} finally {
+			TableManager.release(metaCol);
+		}
+		Map<String, TreeMap<Integer, ColumnDetails>> tables = new LinkedHashMap<>();
+		for (RecordCell rec : records.values()) {
+			PayLoad columnData = rec.getPayload();
+			int ordinal = (int) columnData.getLong(3);
+			tables.computeIfAbsent(columnData.getText(0), k -> new TreeMap<>()).put(ordinal, new ColumnDetails(
+					columnData.getText(1), columnData.getText(2), ordinal, columnData.getText(4).equalsIgnoreCase("yes")));
+		}
+		Map<String, List<ColumnDetails>> columns = new LinkedHashMap<>();
+		for (Map.Entry<String, TreeMap<Integer, ColumnDetails>> entry : tables.entrySet())
+			columns.put(entry.getKey(), new ArrayList<>(entry.getValue().values()));
+		return columns;
+	}
+}
@@ -1,13 +1,23 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
 public enum DataTypes {
-	TINYINT(0x04, 1), SMALLINT(0x05, 2), INT(0x06, 4), BIGINT(0X07, 8), REAL(0X08, 4), DOUBLE(0x09, 8), DATETIME(0x0A,
-			8), DATE(0x0B, 8), TEXT(0x0C, -1);
+	TINYINT(0x04, 1, 0x00), SMALLINT(0x05, 2, 0x01), INT(0x06, 4, 0x02), BIGINT(0X07, 8, 0x03), REAL(0X08, 4,
+			0x02), DOUBLE(0x09, 8, 0x03), DATETIME(0x0A, 8, 0x03), DATE(0x0B, 8, 0x03), TEXT(0x0C, -1, 0x0C);
+
+	private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
 	private int header;
 	private int size;
+	private int nullHeader;
 
-	DataTypes(int header, int size) {
+	DataTypes(int header, int size, int nullHeader) {
 		this.header = header;
 		this.size = size;
+		this.nullHeader = nullHeader;
 	}
 
 	public int getHeader() {
@@ -17,4 +27,74 @@ public enum DataTypes {
 	public int getSize() {
 		return size;
 	}
+
+	/**
+	 * Type code of a NULL value of this type, it takes the same space as a value.
+	 */
+	public int getNullHeader() {
+		return nullHeader;
+	}
+
+	/**
+	 * Integer types, date and datetime are held as long values.
+	 */
+	public boolean isLong() {
+		return this != REAL && this != DOUBLE && this != TEXT;
+	}
+
+	public boolean isDouble() {
+		return this == REAL || this == DOUBLE;
+	}
+
+	/**
+	 * Parses the long value of a literal, dates are stored as epoch millis.
+	 */
+	public long parseLong(String literal) {
+		switch (this) {
+		case DATETIME:
+			return LocalDateTime.parse(literal, DATETIME_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+		case DATE:
+			return LocalDate.parse(literal, DATE_FORMAT).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+		default:
+			return Long.parseLong(literal);
+		}
+	}
+
+	public String formatLong(long value) {
+		switch (this) {
+		case DATETIME:
+			return DATETIME_FORMAT.format(LocalDateTime.ofEpochSecond(Math.floorDiv(value, 1000), 0, ZoneOffset.UTC));
+		case DATE:
+			return DATE_FORMAT.format(LocalDateTime.ofEpochSecond(Math.floorDiv(value, 1000), 0, ZoneOffset.UTC));
+		default:
+			return Long.toString(value);
+		}
+	}
+
+	public String formatDouble(double value) {
+		return this == REAL ? String.valueOf((float) value) : String.valueOf(value);
+	}
+
+	/**
+	 * Looks up a data type by the name used in CREATE TABLE, e.g. "int".
+	 */
+	public static DataTypes fromName(String name) throws UnknownDataTypeException {
+		for (DataTypes type : values())
+			if (type.name().equalsIgnoreCase(name.trim()))
+				return type;
+		throw new UnknownDataTypeException(name);
+	}
+
+	/**
+	 * Looks up the data type of a record type code, null for the NULL codes
+	 * 0x00 - 0x03 which do not tell the type.
+	 */
+	public static DataTypes fromHeader(int header) {
+		if (header >= TEXT.header)
+			return TEXT;
+		for (DataTypes type : values())
+			if (type.header == header)
+				return type;
+		return null;
+	}
 }
@@ -0,0 +1,186 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * Client of DavisBaseServer.
+ *
+ * "java DavisBaseClient -port 5432" reads statements from the console like
+ * DavisBasePrompt and prints the answers of the server.
+ *
+ * "java DavisBaseClient -port 5432 -load <clients> <statements>" measures the
+ * throughput of the server instead: every client opens a session and runs
+ * its statements, alternately an insert into table loadtest and a select of
+ * the record it just inserted, as fast as the server answers them. Table
+ * loadtest is made anew with an index on seq, which is unique across the
+ * clients, so each select reads one record. An answer other than the one
+ * expected counts as an error.
+ */
+public class DavisBaseClient {
+
+	static String host = "localhost";
+	static int port = 0;
+	static int clients = 0;
+	static int statements = 0;
+
+	public static void main(String[] args) {
+		try {
+			parseArguments(args);
+			if (clients > 0)
+				load();
+			else
+				console();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	public static void parseArguments(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i].toLowerCase()) {
+			case "-host":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				host = args[++i];
+				break;
+			case "-port":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-load":
+				if (i + 2 >= args.length)
+					throw new Exception("Missing values for option " + args[i]);
+				clients = Integer.parseInt(args[++i]);
+				statements = Integer.parseInt(args[++i]);
+				break;
+			default:
+				throw new Exception("Unknown option " + args[i]);
+			}
+		}
+		if (port <= 0)
+			throw new Exception("The server port is required, e.g. -port 5432");
+	}
+
+	private static void console() throws IOException {
+		Scanner scanner = new Scanner(System.in).useDelimiter(";");
+		try (Session session = new Session()) {
+			while (true) {
+				System.out.print(DavisBasePrompt.prompt);
+				if (!scanner.hasNext())
+					break;
+				String userCommand = scanner.next().trim();
+				session.execute(userCommand, System.out);
+				System.out.flush();
+				if (userCommand.equalsIgnoreCase("exit") || userCommand.equalsIgnoreCase("quit"))
+					break;
+			}
+		}
+	}
+
+	private static void load() throws Exception {
+		try (Session session = new Session()) {
+			session.execute("drop table loadtest");
+			session.execute("create table loadtest (rowid int, client int, seq int, note text)");
+			session.execute("create index loadtest_seq on loadtest (seq)");
+		}
+		long[][] latencies = new long[clients][statements];
+		int[] errors = new int[clients];
+		String[] firstError = new String[1];
+		Thread[] threads = new Thread[clients];
+		Exception[] failures = new Exception[clients];
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			threads[c] = new Thread(() -> {
+				try (Session session = new Session()) {
+					for (int i = 0; i < statements; i++) {
+						// the seq of the insert, or of the insert just before the select
+						long seq = (long) client * statements + i - i % 2;
+						String statement = i % 2 == 0
+								? "insert into loadtest (rowid, client, seq, note) values (0, " + client + ", " + seq
+										+ ", client" + client + ")"
+								: "select * from loadtest where seq = " + seq;
+						long start = System.nanoTime();
+						String answer = session.execute(statement);
+						latencies[client][i] = System.nanoTime() - start;
+						if (!answer.contains(i % 2 == 0 ? "Successfully inserted" : "Found total of 1 records")) {
+							errors[client]++;
+							synchronized (firstError) {
+								if (firstError[0] == null)
+									firstError[0] = statement + ": " + answer.trim();
+							}
+						}
+					}
+				} catch (Exception e) {
+					failures[client] = e;
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		long elapsed = System.nanoTime() - start;
+		for (Exception e : failures)
+			if (e != null)
+				throw e;
+
+		long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+		long total = (long) clients * statements;
+		System.out.println(total + " statements from " + clients + " clients in " + elapsed / 1000000 + " ms, "
+				+ (long) (total * 1e9 / elapsed) + " statements per second, " + Arrays.stream(errors).sum()
+				+ " errors.");
+		if (firstError[0] != null)
+			System.out.println("First error: " + firstError[0]);
+		System.out.println("Latency: median " + all[all.length / 2] / 1000 + " us, 99th percentile "
+				+ all[(int) (all.length * 0.99)] / 1000 + " us, max " + all[all.length - 1] / 1000 + " us.");
+	}
+
+	/**
+	 * Connection to the server, see DavisBaseServer for the protocol.
+	 */
+	static final class Session implements Closeable {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		Session() throws IOException {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		/**
+		 * Runs the statement on the server and returns its output.
+		 */
+		String execute(String statement) throws IOException {
+			StringBuilder answer = new StringBuilder();
+			execute(statement, answer);
+			return answer.toString();
+		}
+
+		/**
+		 * Runs the statement on the server, its output is appended as it
+		 * arrives.
+		 */
+		void execute(String statement, Appendable output) throws IOException {
+			DavisBaseServer.writeMessage(out, statement);
+			while (true) {
+				String chunk = DavisBaseServer.readMessage(in);
+				if (chunk == null)
+					throw new EOFException("The server closed the connection.");
+				if (chunk.isEmpty())
+					return;
+				output.append(chunk);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -1,6 +1,8 @@
+import java.io.IOException;
 import java.util.Scanner;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static java.lang.System.out;
 
@@ -25,8 +27,55 @@ public class DavisBasePrompt {
 	static boolean isExit = false;
 	static String path = "data/user_data";
 
-	/* Page size for all files is 512 bytes by default. */
-	static long pageSize = 512;
+	/*
+	 * Page size for new files is 512 bytes by default. It can be changed with
+	 * -pagesize <bytes>, or per table with CREATE TABLE ... PAGE_SIZE <bytes>.
+	 */
+	static int pageSize = 512;
+
+	/* Memory budget of the page cache, can be set with -buffer <bytes>. */
+	static long bufferPoolSize = 8 * 1024 * 1024;
+
+	/* Write-ahead log of all table and index files. */
+	static String logFile = "data/davisbase.wal";
+
+	/* Table file I/O, "buffer" (page cache) or "mmap" (memory mapped files). */
+	static String ioMode = "buffer";
+
+	/* TCP port of the server for other clients, set with -port <port>. */
+	static int serverPort = 0;
+
+	/*
+	 * Tables of at least this many records are scanned for a WHERE condition
+	 * on several threads, see RecordCursor. -parallel <records>, 0 turns it off.
+	 */
+	static int parallelScanRecords = 50000;
+
+	/*
+	 * Groups of a GROUP BY held in memory, the records of further groups are
+	 * spilled to files under data/. -groups <count>
+	 */
+	static int groupByGroups = 100000;
+
+	/*
+	 * Records an ORDER BY sorts in memory, larger results are sorted in runs
+	 * written to files under data/. -sort <records>
+	 */
+	static int sortRecords = 100000;
+
+	/*
+	 * Records of the smaller table of a JOIN hashed in memory, larger joins
+	 * are split into partitions under data/. -join <records>
+	 */
+	static int joinRecords = 100000;
+
+	/*
+	 * One statement at a time changes the database, a session in a
+	 * transaction keeps the lock until COMMIT or ROLLBACK. Statements that
+	 * only read do not take it, table locks and page latches keep them apart
+	 * from the writer.
+	 */
+	static final ReentrantLock writeLock = new ReentrantLock();
 
 	/*
 	 * The Scanner class is used to collect user commands from the prompt There are
@@ -44,38 +93,117 @@ public class DavisBasePrompt {
 	public static void main(String[] args) {
 
 		try {
+			parseArguments(args);
+
 			/* Display the welcome screen */
 			splashScreen();
 
 			/* Initialize the DataBase */
 			initialize();
+			if (serverPort > 0)
+				DavisBaseServer.start(serverPort);
 
 			/* Variable to collect user input from the prompt */
 			String userCommand = "";
 
 			while (!isExit) {
 				System.out.print(prompt);
+				/* a server without console input serves until it is killed */
+				if (serverPort > 0 && !scanner.hasNext())
+					Thread.currentThread().join();
 				/* toLowerCase() renders command case insensitive */
 				userCommand = scanner.next().replace("\n", " ").replace("\r", "").trim().toLowerCase();
 				// userCommand = userCommand.replace("\n", "").replace("\r", "");
-				parseUserCommand(userCommand);
+				execute(userCommand);
 			}
+			endSession();
+			DavisBaseServer.stop();
 			System.out.println("Exiting...");
+			TableManager.closeAll();
+			BufferPool.closeAll();
+			WriteAheadLog.close();
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 		}
 
 	}
 
+	/**
+	 * Reads the startup options, e.g. "java DavisBasePrompt -buffer 16777216" or
+	 * "java DavisBasePrompt -io mmap"
+	 */
+	public static void parseArguments(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i].toLowerCase()) {
+			case "-buffer":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				bufferPoolSize = Long.parseLong(args[++i]);
+				break;
+			case "-pagesize":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				pageSize = Integer.parseInt(args[++i]);
+				if (!Table.isValidPageSize(pageSize))
+					throw new Exception("Page size should be a power of 2 between " + Table.MIN_PAGE_SIZE + " and "
+							+ Table.MAX_PAGE_SIZE + ".");
+				break;
+			case "-io":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				ioMode = args[++i].toLowerCase();
+				if (!ioMode.equals("buffer") && !ioMode.equals("mmap"))
+					throw new Exception("Unknown I/O mode " + ioMode);
+				break;
+			case "-port":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				serverPort = Integer.parseInt(args[++i]);
+				break;
+			case "-parallel":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				parallelScanRecords = Integer.parseInt(args[++i]);
+				break;
+			case "-groups":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				groupByGroups = Integer.parseInt(args[++i]);
+				if (groupByGroups < 1)
+					throw new Exception("At least one group should fit in memory.");
+				break;
+			case "-sort":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				sortRecords = Integer.parseInt(args[++i]);
+				if (sortRecords < 1)
+					throw new Exception("At least one record should fit in memory.");
+				break;
+			case "-join":
+				if (i + 1 >= args.length)
+					throw new Exception("Missing value for option " + args[i]);
+				joinRecords = Integer.parseInt(args[++i]);
+				if (joinRecords < 1)
+					throw new Exception("At least one record should fit in memory.");
+				break;
+			default:
+				throw new Exception("Unknown option " + args[i]);
+			}
+		}
+	}
+
 	/**
 	 * ***********************************************************************
 	 * Static method definitions
 	 */
 
 	/**
-	 * Initialize Database. Create missing files
+	 * Initialize Database. Replays the log of the last run, which did not
+	 * reach its checkpoint if it crashed, then creates missing files.
 	 */
 	public static void initialize() throws Exception {
+		BufferPool.setCapacity(bufferPoolSize);
+		WriteAheadLog.open(logFile);
 		Operations.validateCatalogueTables();
 	}
 
@@ -129,10 +257,25 @@ public class DavisBasePrompt {
 		out.println("SELECT <column_list> FROM <table_name> [WHERE <condition>];");
 		out.println("\tDisplay table records whose optional <condition>");
 		out.println("\tis <column_name> = <value>.\n");
+		out.println("SELECT COUNT(*), SUM(<column_name>), ... FROM <table_name> [WHERE <condition>];");
+		out.println("\tCompute COUNT, SUM, MIN, MAX or AVG over the matching records.\n");
+		out.println("SELECT <column_list>, COUNT(*), ... FROM <table_name> [WHERE <condition>] GROUP BY <column_list>;");
+		out.println("\tCompute the aggregates for every group of records with the same values.\n");
+		out.println("SELECT <column_list> FROM <table_name> [WHERE <condition>] [ORDER BY <column_name> [ASC|DESC]]");
+		out.println("\t[LIMIT <n> [OFFSET <m>]];");
+		out.println("\tDisplay the records sorted by the column, only <n> of them after the first <m> with LIMIT.\n");
+		out.println("SELECT <column_list> FROM <table_name> JOIN <table_name> ON <column> = <column> [WHERE <condition>];");
+		out.println("\tDisplay the pairs of records of the two tables with equal values in the columns.\n");
 		out.println("DROP TABLE <table_name>;");
 		out.println("\tRemove table data (i.e. all records) and its schema.\n");
+		out.println("CREATE INDEX <index_name> ON <table_name> (<column_name>);");
+		out.println("\tIndex a column so conditions on it do not scan the table.\n");
 		out.println("UPDATE TABLE <table_name> SET <column_name> = <value> [WHERE <condition>];");
 		out.println("\tModify records data whose optional <condition> is\n");
+		out.println("BEGIN; COMMIT; ROLLBACK;");
+		out.println("\tGroup INSERT, UPDATE and DELETE statements into one transaction.\n");
+		out.println("VACUUM <table_name>;");
+		out.println("\tCompact the table file, releasing the space of deleted records.\n");
 		out.println("VERSION;");
 		out.println("\tDisplay the program version.\n");
 		out.println("HELP;");
@@ -158,6 +301,60 @@ public class DavisBasePrompt {
 		System.out.println(getCopyright());
 	}
 
+	/**
+	 * Runs a statement of the console or of a server session, see writeLock.
+	 */
+	public static void execute(String userCommand) {
+		if (isReadOnly(userCommand)) {
+			parseUserCommand(userCommand);
+			return;
+		}
+		if (!writeLock.isHeldByCurrentThread())
+			writeLock.lock();
+		try {
+			Transaction.startStatement();
+			parseUserCommand(userCommand);
+		} finally {
+			if (!Transaction.isActive())
+				writeLock.unlock();
+		}
+		// the commit is forced after the lock is released, together with those of other sessions
+		try {
+			WriteAheadLog.awaitCommit();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static boolean isReadOnly(String userCommand) {
+		switch (userCommand.split(" ")[0]) {
+		case "select":
+		case "show":
+		case "help":
+		case "version":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Ends the session of the current thread, rolling back the transaction it
+	 * left open.
+	 */
+	public static void endSession() {
+		if (!writeLock.isHeldByCurrentThread())
+			return;
+		try {
+			Transaction.rollback();
+			System.out.println("Transaction rolled back.");
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
 	public static void parseUserCommand(String userCommand) {
 
 		/*
@@ -180,11 +377,17 @@ public class DavisBasePrompt {
 			break;
 		case "drop":
 //			System.out.println("CASE: DROP");
-			dropTable(userCommand);
+			if (!rejectInTransaction("DROP"))
+				dropTable(userCommand);
 			break;
 		case "create":
 //			System.out.println("CASE: CREATE");
-			parseCreateTable(userCommand);
+			if (rejectInTransaction("CREATE"))
+				break;
+			if (commandTokens.size() > 1 && commandTokens.get(1).equals("index"))
+				parseCreateIndex(userCommand);
+			else
+				parseCreateTable(userCommand);
 			break;
 		case "update":
 //			System.out.println("CASE: UPDATE");
@@ -202,6 +405,20 @@ public class DavisBasePrompt {
 //			System.out.println("CASE: SHOW");
 			parseShow(userCommand);
 			break;
+		case "vacuum":
+			if (!rejectInTransaction("VACUUM"))
+				parseVacuum(userCommand);
+			break;
+		case "begin":
+		case "start":
+			beginTransaction();
+			break;
+		case "commit":
+			commitTransaction();
+			break;
+		case "rollback":
+			rollbackTransaction();
+			break;
 		case "help":
 			help();
 			break;
@@ -231,6 +448,65 @@ public class DavisBasePrompt {
 		String tableName = queryString[queryString.length - 1];
 		try {
 			Operations.delete(path, tableName, condition);
+		} catch (Exception e) {
+			e.printStackTrace();
+			Transaction.abort();
+		}
+	}
+
+	/**
+	 * Files created or removed by a statement can not be rolled back, such
+	 * statements are refused inside a transaction.
+	 */
+	private static boolean rejectInTransaction(String command) {
+		if (!Transaction.isActive())
+			return false;
+		System.out.println(command + " is not allowed inside a transaction.");
+		return true;
+	}
+
+	private static void beginTransaction() {
+		// BEGIN [TRANSACTION]; or START TRANSACTION;
+		try {
+			Transaction.begin();
+			System.out.println("Transaction started.");
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	private static void commitTransaction() {
+		try {
+			int inserted = Transaction.commit();
+			System.out.println("Transaction committed, " + inserted + " records were inserted.");
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	private static void rollbackTransaction() {
+		if (!Transaction.isActive()) {
+			System.out.println("There is no transaction in progress.");
+			return;
+		}
+		try {
+			Transaction.rollback();
+			System.out.println("Transaction rolled back.");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void parseVacuum(String userCommand) {
+		// VACUUM table_name;
+		String[] tokens = userCommand.trim().split("\\s+");
+		if (tokens.length != 2) {
+			System.out.println("Expected VACUUM table_name.");
+			return;
+		}
+		String tableName = tokens[1];
+		try {
+			Operations.vacuum(tableName.startsWith("davisbase_") ? "data/catalog" : path, tableName);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -273,9 +549,33 @@ public class DavisBasePrompt {
 	 *            is a String of the user input
 	 */
 	public static void parseQuery(String queryString) {
-		// SELECT [col_names] FROM table_name [WHERE condition];
-		String[] splitOnWhere = queryString.split("where");
-		String querySplit[] = splitOnWhere[0].trim().split(" ");
+		// SELECT [col_names] FROM table_name [WHERE condition] [GROUP BY col_names]
+		// [ORDER BY col_name [ASC|DESC], ...] [LIMIT n [OFFSET m]];
+		String[] splitOnLimit = queryString.split("\\s+limit\\s+");
+		long limit = -1;
+		long offset = 0;
+		if (splitOnLimit.length > 1) {
+			String[] splitOnOffset = splitOnLimit[1].split("\\s+offset\\s+");
+			try {
+				limit = Long.parseLong(splitOnOffset[0].trim());
+				if (splitOnOffset.length > 1)
+					offset = Long.parseLong(splitOnOffset[1].trim());
+			} catch (NumberFormatException e) {
+				limit = -1;
+			}
+			if (limit < 0 || offset < 0) {
+				System.out.println("LIMIT and OFFSET should be numbers of records.");
+				return;
+			}
+		}
+		String[] splitOnOrderBy = splitOnLimit[0].split("\\s+order\\s+by\\s+");
+		String[] orderBy = splitOnOrderBy.length > 1 ? splitList(splitOnOrderBy[1]) : new String[0];
+		String[] splitOnGroupBy = splitOnOrderBy[0].split("\\s+group\\s+by\\s+");
+		String[] groupBy = splitOnGroupBy.length > 1 ? splitList(splitOnGroupBy[1]) : new String[0];
+		String[] splitOnWhere = splitOnGroupBy[0].split("where");
+		// FROM table_name JOIN table_name ON column = column
+		String[] splitOnJoin = splitOnWhere[0].trim().split("\\s+join\\s+");
+		String querySplit[] = splitOnJoin[0].trim().split(" ");
 		String tableName = querySplit[querySplit.length - 1];
 
 		String[] cols = splitOnWhere[0].trim().split("from")[0].trim().replace("select", "").split(",");
@@ -288,15 +588,39 @@ public class DavisBasePrompt {
 			condition = splitOnWhere[1].trim().split(" ");
 		}
 		try {
-			if (tableName.contains("davisbase"))
-				Operations.select("data/catalog", tableName, columnNames, condition);
-			else
-				Operations.select(path, tableName, columnNames, condition);
+			if (splitOnJoin.length > 1) {
+				String[] splitOnOn = splitOnJoin[1].trim().split("\\s+on\\s+");
+				if (splitOnOn.length < 2) {
+					System.out.println("Expected ON <column> = <column> after JOIN.");
+					return;
+				}
+				if (groupBy.length > 0 || orderBy.length > 0) {
+					System.out.println("GROUP BY and ORDER BY can not be used with JOIN.");
+					return;
+				}
+				String joinedName = splitOnOn[0].trim();
+				Operations.join(tablePath(tableName), tableName, tablePath(joinedName), joinedName, splitOnOn[1],
+						columnNames, condition, offset, limit);
+			} else {
+				Operations.select(tablePath(tableName), tableName, columnNames, condition, groupBy, orderBy, offset,
+						limit);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	private static String tablePath(String tableName) {
+		return tableName.contains("davisbase") ? "data/catalog" : path;
+	}
+
+	private static String[] splitList(String list) {
+		String[] items = list.split(",");
+		for (int i = 0; i < items.length; i++)
+			items[i] = items[i].trim();
+		return items;
+	}
+
 	/**
 	 * Stub method for updating records
 	 *
@@ -323,6 +647,7 @@ public class DavisBasePrompt {
 			Operations.update(path, tableName, data, condition);
 		} catch (Exception e) {
 			e.printStackTrace();
+			Transaction.abort();
 		}
 	}
 
@@ -351,6 +676,25 @@ public class DavisBasePrompt {
 				columnNames[i] = columnNames[i].trim();
 
 			Operations.insert(path, tableName, columnNames, values);
+		} catch (Exception e) {
+			e.printStackTrace();
+			Transaction.abort();
+		}
+	}
+
+	public static void parseCreateIndex(String createIndexString) {
+		// CREATE INDEX index_name ON table_name (column_name)
+		String[] tokens = createIndexString.replaceAll("\\(", " ").replaceAll("\\)", " ").trim().split("\\s+");
+		if (tokens.length != 6 || !tokens[3].equals("on")) {
+			System.out.println("Expected CREATE INDEX index_name ON table_name (column_name).");
+			return;
+		}
+		if (tokens[4].startsWith("davisbase_")) {
+			System.out.println("can not index Meta tables.");
+			return;
+		}
+		try {
+			Operations.createIndex(path, tokens[2], tokens[4], tokens[5]);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -364,12 +708,35 @@ public class DavisBasePrompt {
 	 */
 	public static void parseCreateTable(String createTableString) {
 		// CREATE TABLE table_name ( row_id INT, column_name2 data_type2 [NOT NULL],
-		// column_name3 data_type3 [NOT NULL], ...)
+		// column_name3 data_type3 [NOT NULL], ...) [PAGE_SIZE bytes]
 		ArrayList<String> createTableTokens = new ArrayList<String>(Arrays.asList(createTableString.split(" ")));
 
 		/* Define table file name */
 		String tableName = createTableTokens.get(2);
 
+		/* Table options follow the column list */
+		int tablePageSize = pageSize;
+		int optionsStart = createTableString.lastIndexOf(')');
+		if (optionsStart != -1) {
+			String[] options = createTableString.substring(optionsStart + 1).replace("=", " ").trim().split("\\s+");
+			createTableString = createTableString.substring(0, optionsStart + 1);
+			if (options.length == 2 && options[0].equals("page_size")) {
+				try {
+					tablePageSize = Integer.parseInt(options[1]);
+				} catch (NumberFormatException e) {
+					tablePageSize = -1;
+				}
+				if (!Table.isValidPageSize(tablePageSize)) {
+					System.out.println("Page size should be a power of 2 between " + Table.MIN_PAGE_SIZE + " and "
+							+ Table.MAX_PAGE_SIZE + ".");
+					return;
+				}
+			} else if (!options[0].isEmpty()) {
+				System.out.println("Unknown table option: " + String.join(" ", options));
+				return;
+			}
+		}
+
 		/* YOUR CODE GOES HERE */
 		String[] temp = createTableString.replaceAll("\\(", " ").replaceAll("\\)", " ").split(tableName);
 		String[] columnNames = temp[1].trim().split(",");
@@ -380,9 +747,11 @@ public class DavisBasePrompt {
 			String[] col1_Details = columnNames[0].split(" ");
 			if(!col1_Details[0].trim().equalsIgnoreCase("rowid") || col1_Details[col1_Details.length-1].trim().equalsIgnoreCase("NULL"))
 				throw new Exception("Primary column should be named 'rowid' and cannot be 'NULL'");
+			for (String column : columnNames)
+				DataTypes.fromName(column.trim().split(" ")[1]);
 
 			/* Code to create a .tbl file to contain table data */
-			Operations.makeFiles(path, tableName);
+			Operations.makeFiles(path, tableName, tablePageSize);
 
 			/*
 			 * Code to insert a row in the davisbase_tables table i.e. database catalog
@@ -0,0 +1,247 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the database to local clients over TCP, started with -port <port>.
+ * Every connection is a session of its own thread, a virtual thread where the
+ * JVM has them. The sessions share the open tables and the page cache with
+ * the console and with each other.
+ *
+ * Messages in both directions are a length (4 bytes) followed by as many
+ * bytes of UTF-8 text, at most MAX_MESSAGE of them. The client sends one
+ * statement per message, without the semicolon. What the statement prints
+ * comes back in messages of whole lines, sent as they fill up, and an empty
+ * message ends the answer. "exit" ends the session.
+ */
+public class DavisBaseServer {
+
+	private static ServerSocket serverSocket;
+	private static ExecutorService sessions;
+	private static final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+	/* Longest message accepted, a longer one ends the session. */
+	static final int MAX_MESSAGE = 4 * 1024 * 1024;
+	/* Output of a statement is sent in messages of up to this many bytes. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/* Collects what the statements of the session on this thread print. */
+	private static final ThreadLocal<SessionOutput> sessionOutput = new ThreadLocal<>();
+
+	public static synchronized void start(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		sessions = newSessionExecutor();
+		System.setOut(route(System.out));
+		System.setErr(route(System.err));
+		Thread acceptor = new Thread(DavisBaseServer::accept, "davisbase-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		System.out.println("Listening on port " + serverSocket.getLocalPort() + ".");
+	}
+
+	/**
+	 * Stops accepting connections, closes the open ones and waits for their
+	 * sessions to end. Open transactions of the sessions are rolled back.
+	 */
+	public static void stop() throws Exception {
+		synchronized (DavisBaseServer.class) {
+			if (serverSocket == null)
+				return;
+			serverSocket.close();
+			serverSocket = null;
+		}
+		for (Socket client : clients)
+			client.close();
+		sessions.shutdown();
+		sessions.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private static ExecutorService newSessionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private static void accept() {
+		ServerSocket listener = serverSocket;
+		while (true) {
+			Socket client;
+			try {
+				client = listener.accept();
+			} catch (IOException e) {
+				if (!listener.isClosed())
+					e.printStackTrace();
+				return;
+			}
+			clients.add(client);
+			sessions.execute(() -> serve(client));
+		}
+	}
+
+	private static void serve(Socket client) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+			client.setTcpNoDelay(true);
+			SessionOutput output = new SessionOutput(out);
+			sessionOutput.set(output);
+			String userCommand;
+			while ((userCommand = readMessage(in)) != null) {
+				userCommand = userCommand.replace("\n", " ").replace("\r", "").trim().toLowerCase();
+				if (userCommand.equals("exit") || userCommand.equals("quit")) {
+					writeMessage(out, "Exiting...\n");
+					writeMessage(out, "");
+					break;
+				}
+				DavisBasePrompt.execute(userCommand);
+				output.finish();
+			}
+		} catch (SocketException e) {
+			// the client or stop() closed the connection
+		} catch (IOException e) {
+			// to the console, the session is gone
+			sessionOutput.remove();
+			e.printStackTrace();
+		} finally {
+			DavisBasePrompt.endSession();
+			sessionOutput.remove();
+			clients.remove(client);
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Reads a message, null at the end of the stream.
+	 */
+	static String readMessage(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < 0 || length > MAX_MESSAGE)
+			throw new IOException("Invalid message length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeMessage(DataOutputStream out, String message) throws IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.flush();
+	}
+
+	/**
+	 * What the statements of a session print. Whole lines are sent to the
+	 * client as soon as a chunk of them is buffered, the rest when the
+	 * statement ends.
+	 */
+	private static final class SessionOutput extends ByteArrayOutputStream {
+		private final DataOutputStream out;
+		/* Sending failed, the output of the statement is dropped. */
+		private IOException failure;
+
+		SessionOutput(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) {
+			super.write(b);
+			sendChunks();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			super.write(b, off, len);
+			sendChunks();
+		}
+
+		private void sendChunks() {
+			while (count > CHUNK_SIZE) {
+				int end = CHUNK_SIZE;
+				while (end > 0 && buf[end - 1] != '\n')
+					end--;
+				if (end == 0) {
+					// a line longer than a chunk, cut it between characters
+					end = CHUNK_SIZE;
+					while (end > 1 && (buf[end] & 0xC0) == 0x80)
+						end--;
+				}
+				send(end);
+			}
+		}
+
+		private void send(int end) {
+			if (failure == null) {
+				try {
+					writeMessage(out, new String(buf, 0, end, Charset.defaultCharset()));
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			System.arraycopy(buf, end, buf, 0, count - end);
+			count -= end;
+		}
+
+		/**
+		 * Sends the rest of the output of the statement and the empty message
+		 * that ends it.
+		 */
+		void finish() throws IOException {
+			if (count > 0)
+				send(count);
+			if (failure != null)
+				throw failure;
+			writeMessage(out, "");
+		}
+	}
+
+	/**
+	 * Wraps a console stream so that what a session thread prints goes to the
+	 * session instead.
+	 */
+	private static PrintStream route(PrintStream console) {
+		return new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				SessionOutput output = sessionOutput.get();
+				if (output != null)
+					output.write(b);
+				else
+					console.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				SessionOutput output = sessionOutput.get();
+				if (output != null)
+					output.write(b, off, len);
+				else
+					console.write(b, off, len);
+			}
+
+			@Override
+			public void flush() {
+				if (sessionOutput.get() == null)
+					console.flush();
+			}
+		}, true);
+	}
+}
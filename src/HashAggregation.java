@@ -0,0 +1,278 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * GROUP BY of the records read by a cursor: every record is added to the
+ * aggregates of its group, found by a hash of its key columns.
+ *
+ * A key of one numeric column is hashed as a long, without boxing it. Other
+ * keys are lists of the column values.
+ *
+ * Only a limited number of groups are held in memory, see
+ * DavisBasePrompt.groupByGroups. Once that many exist, the records of other
+ * groups are written to partition files under data/, split by the hash of
+ * their key, and every partition is grouped on its own after the groups in
+ * memory have been handed out.
+ */
+public final class HashAggregation implements Closeable {
+
+	/**
+	 * Receives a group: the formatted key values and its aggregates.
+	 */
+	public interface Output {
+		void group(String[] key, Aggregate[] aggregates) throws Exception;
+	}
+
+	private static final int PARTITIONS = 16;
+	/* A partition split this often still holds too many groups, group it in memory. */
+	private static final int MAX_LEVEL = 8;
+
+	private final TableSchema schema;
+	private final int[] keyColumns;
+	private final Aggregate[] aggregates;
+	private final boolean[] projection;
+	private final int maxGroups;
+	private final File spillDirectory;
+	private final int level;
+
+	private final List<Aggregate[]> groups = new ArrayList<>();
+
+	/* Group of a numeric key: open addressing table of keys and group numbers + 1. */
+	private final boolean numeric;
+	private long[] hashKeys = new long[64];
+	private int[] hashGroups = new int[64];
+	private long[] numericKeys = new long[16];
+	private int nullGroup = -1;
+
+	/* Group of any other key. */
+	private final Map<List<Object>, Integer> keyGroups = new HashMap<>();
+	private final List<List<Object>> keys = new ArrayList<>();
+
+	private final SpillFile[] spills = new SpillFile[PARTITIONS];
+
+	/**
+	 * @param keyColumns
+	 *            0 based column indexes of the key, 0 is the rowid
+	 * @param projection
+	 *            the payload columns of the records, those of the key and of
+	 *            the aggregates must be set
+	 */
+	public HashAggregation(TableSchema schema, int[] keyColumns, Aggregate[] aggregates, boolean[] projection,
+			int maxGroups, File spillDirectory) {
+		this(schema, keyColumns, aggregates, projection, maxGroups, spillDirectory, 0);
+	}
+
+	private HashAggregation(TableSchema schema, int[] keyColumns, Aggregate[] aggregates, boolean[] projection,
+			int maxGroups, File spillDirectory, int level) {
+		this.schema = schema;
+		this.keyColumns = keyColumns;
+		this.aggregates = aggregates;
+		this.projection = projection;
+		this.maxGroups = maxGroups;
+		this.spillDirectory = spillDirectory;
+		this.level = level;
+		this.numeric = keyColumns.length == 1 && schema.getType(keyColumns[0]) != DataTypes.TEXT;
+	}
+
+	public void add(RecordCell record) throws IOException {
+		int group;
+		if (numeric) {
+			int column = keyColumns[0];
+			if (column != 0 && record.getPayload().isNull(column - 1)) {
+				if (nullGroup == -1) {
+					if (isFull()) {
+						spill(record, 0);
+						return;
+					}
+					nullGroup = newGroup();
+				}
+				group = nullGroup;
+			} else {
+				long key = numericKey(record, column);
+				group = findGroup(key);
+				if (group == -1) {
+					if (isFull()) {
+						spill(record, Long.hashCode(key));
+						return;
+					}
+					group = addGroup(key);
+				}
+			}
+		} else {
+			List<Object> key = key(record);
+			Integer found = keyGroups.get(key);
+			if (found == null) {
+				if (isFull()) {
+					spill(record, key.hashCode());
+					return;
+				}
+				found = newGroup();
+				keyGroups.put(key, found);
+				keys.add(key);
+			}
+			group = found;
+		}
+		for (Aggregate aggregate : groups.get(group))
+			aggregate.add(record);
+	}
+
+	private boolean isFull() {
+		return groups.size() >= maxGroups && level < MAX_LEVEL;
+	}
+
+	private int newGroup() {
+		Aggregate[] state = new Aggregate[aggregates.length];
+		for (int i = 0; i < state.length; i++)
+			state[i] = aggregates[i].fresh();
+		groups.add(state);
+		return groups.size() - 1;
+	}
+
+	/**
+	 * The value of a numeric key column as a long, doubles by their bits.
+	 */
+	private long numericKey(RecordCell record, int column) {
+		if (column == 0)
+			return record.getRowId();
+		PayLoad payload = record.getPayload();
+		if (!schema.getType(column).isDouble())
+			return payload.getLong(column - 1);
+		double value = payload.getDouble(column - 1);
+		// 0.0 and -0.0 are the same group
+		return value == 0 ? 0 : Double.doubleToLongBits(value);
+	}
+
+	private int findGroup(long key) {
+		int mask = hashKeys.length - 1;
+		for (int i = mix(key) & mask; hashGroups[i] != 0; i = (i + 1) & mask)
+			if (hashKeys[i] == key)
+				return hashGroups[i] - 1;
+		return -1;
+	}
+
+	private int addGroup(long key) {
+		int group = newGroup();
+		if (group == numericKeys.length)
+			numericKeys = Arrays.copyOf(numericKeys, group * 2);
+		numericKeys[group] = key;
+		// keep the table at most half full
+		if ((groups.size() - (nullGroup == -1 ? 0 : 1)) * 2 > hashKeys.length) {
+			long[] oldKeys = hashKeys;
+			int[] oldGroups = hashGroups;
+			hashKeys = new long[oldKeys.length * 2];
+			hashGroups = new int[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldGroups[i] != 0)
+					insertHash(oldKeys[i], oldGroups[i]);
+		}
+		insertHash(key, group + 1);
+		return group;
+	}
+
+	private void insertHash(long key, int groupPlusOne) {
+		int mask = hashKeys.length - 1;
+		int i = mix(key) & mask;
+		while (hashGroups[i] != 0)
+			i = (i + 1) & mask;
+		hashKeys[i] = key;
+		hashGroups[i] = groupPlusOne;
+	}
+
+	private static int mix(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private List<Object> key(RecordCell record) {
+		List<Object> key = new ArrayList<>(keyColumns.length);
+		PayLoad payload = record.getPayload();
+		for (int column : keyColumns) {
+			DataTypes type = schema.getType(column);
+			if (column == 0)
+				key.add((long) record.getRowId());
+			else if (payload.isNull(column - 1))
+				key.add(null);
+			else if (type == DataTypes.TEXT)
+				key.add(payload.getText(column - 1));
+			else if (type.isDouble())
+				key.add(payload.getDouble(column - 1) + 0.0);
+			else
+				key.add(payload.getLong(column - 1));
+		}
+		return key;
+	}
+
+	/**
+	 * Hands out the groups held in memory in the order they were first seen,
+	 * then the groups of every partition that spilled.
+	 */
+	public void finish(Output output) throws Exception {
+		for (int group = 0; group < groups.size(); group++)
+			output.group(formatKey(group), groups.get(group));
+		groups.clear();
+		for (int i = 0; i < PARTITIONS; i++) {
+			if (spills[i] == null)
+				continue;
+			try (HashAggregation partition = new HashAggregation(schema, keyColumns, aggregates, projection,
+					maxGroups, spillDirectory, level + 1)) {
+				for (RecordCell record = spills[i].next(); record != null; record = spills[i].next())
+					partition.add(record);
+				partition.finish(output);
+			} finally {
+				spills[i].close();
+				spills[i] = null;
+			}
+		}
+	}
+
+	private String[] formatKey(int group) {
+		String[] key = new String[keyColumns.length];
+		if (numeric) {
+			DataTypes type = schema.getType(keyColumns[0]);
+			if (group == nullGroup)
+				key[0] = "null";
+			else if (type.isDouble())
+				key[0] = type.formatDouble(Double.longBitsToDouble(numericKeys[group]));
+			else
+				key[0] = keyColumns[0] == 0 ? Long.toString(numericKeys[group]) : type.formatLong(numericKeys[group]);
+			return key;
+		}
+		List<Object> values = keys.get(group);
+		for (int i = 0; i < key.length; i++) {
+			Object value = values.get(i);
+			DataTypes type = schema.getType(keyColumns[i]);
+			if (value == null)
+				key[i] = "null";
+			else if (value instanceof String)
+				key[i] = (String) value;
+			else if (value instanceof Double)
+				key[i] = type.formatDouble((Double) value);
+			else
+				key[i] = keyColumns[i] == 0 ? value.toString() : type.formatLong((Long) value);
+		}
+		return key;
+	}
+
+	/**
+	 * Writes the record to the partition of its key hash.
+	 */
+	private void spill(RecordCell record, int hash) throws IOException {
+		int partition = (mix(hash + 0x61C88647L * (level + 1)) >>> 1) % PARTITIONS;
+		if (spills[partition] == null)
+			spills[partition] = new SpillFile(spillDirectory, "groupby", schema, projection);
+		spills[partition].write(record);
+	}
+
+	/**
+	 * Deletes the partition files that were not grouped yet, e.g. after the
+	 * scan failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (int i = 0; i < PARTITIONS; i++) {
+			if (spills[i] != null)
+				spills[i].close();
+			spills[i] = null;
+		}
+	}
+}
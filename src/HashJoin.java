@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Equi-join of two tables on one column of each. The smaller input, by the
+ * record counts of the tables, is read into a hash table by its key; the
+ * other one is streamed from its cursor and every record is matched with
+ * the records of the same key. NULL keys match nothing.
+ *
+ * At most DavisBasePrompt.joinRecords records of the build input are held
+ * in memory. Beyond that both inputs are split by the hash of their key into
+ * partition files under data/, and every pair of partitions is joined on its
+ * own, split again if its build side is still too large.
+ */
+public final class HashJoin implements Closeable {
+
+	/**
+	 * Receives the records of a match, returns false when it wants no more.
+	 */
+	public interface Output {
+		boolean row(RecordCell left, RecordCell right) throws Exception;
+	}
+
+	private static final int LEFT = 0, RIGHT = 1;
+	private static final int PARTITIONS = 16;
+	/* A partition split this often still holds too many records, join it in memory. */
+	private static final int MAX_LEVEL = 8;
+
+	private final TableSchema[] schemas;
+	private final int[] keyColumns;
+	private final boolean[][] projections;
+	/* Keys compared as doubles, when either column is a real or double. */
+	private final boolean doubleKeys;
+	private final int maxRecords;
+	private final File spillDirectory;
+	private final List<SpillFile> spills = new ArrayList<>();
+
+	/**
+	 * @param leftColumn
+	 *            0 based column index of the key, 0 is the rowid
+	 * @param leftProjection
+	 *            the payload columns of the records, that of the key must be
+	 *            set
+	 */
+	public HashJoin(TableSchema leftSchema, int leftColumn, boolean[] leftProjection, TableSchema rightSchema,
+			int rightColumn, boolean[] rightProjection, int maxRecords, File spillDirectory) throws Exception {
+		this.schemas = new TableSchema[] { leftSchema, rightSchema };
+		this.keyColumns = new int[] { leftColumn, rightColumn };
+		this.projections = new boolean[][] { leftProjection, rightProjection };
+		DataTypes leftType = leftSchema.getType(leftColumn);
+		DataTypes rightType = rightSchema.getType(rightColumn);
+		if ((leftType == DataTypes.TEXT) != (rightType == DataTypes.TEXT))
+			throw new Exception("Can not join a text column with a number column.");
+		this.doubleKeys = leftType.isDouble() || rightType.isDouble();
+		this.maxRecords = maxRecords;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Joins the records of the two inputs, the record counts choose the one
+	 * that is hashed.
+	 */
+	public void join(RecordSource left, long leftRecords, RecordSource right, long rightRecords, Output output)
+			throws Exception {
+		if (leftRecords <= rightRecords)
+			join(LEFT, left, leftRecords, right, output, 0);
+		else
+			join(RIGHT, right, rightRecords, left, output, 0);
+	}
+
+	/**
+	 * Returns false when the output wants no more records.
+	 */
+	private boolean join(int build, RecordSource buildInput, long buildRecords, RecordSource probeInput,
+			Output output, int level) throws Exception {
+		int probe = 1 - build;
+		Map<Object, List<RecordCell>> table = new HashMap<>((int) Math.min(buildRecords, maxRecords) * 4 / 3 + 1);
+		int held = 0;
+		SpillFile[][] partitions = null;
+		for (RecordCell record = buildInput.next(); record != null; record = buildInput.next()) {
+			Object key = key(build, record);
+			if (key == null)
+				continue;
+			if (partitions != null) {
+				spill(partitions, build, key, record, level);
+				continue;
+			}
+			table.computeIfAbsent(key, k -> new ArrayList<>(1)).add(record);
+			if (++held > maxRecords && level < MAX_LEVEL) {
+				// too large for memory, move what was read so far to the partitions
+				partitions = new SpillFile[2][PARTITIONS];
+				for (Map.Entry<Object, List<RecordCell>> entry : table.entrySet())
+					for (RecordCell read : entry.getValue())
+						spill(partitions, build, entry.getKey(), read, level);
+				table.clear();
+			}
+		}
+
+		if (partitions == null) {
+			for (RecordCell record = probeInput.next(); record != null; record = probeInput.next()) {
+				List<RecordCell> matches = table.get(key(probe, record));
+				if (matches == null)
+					continue;
+				for (RecordCell match : matches)
+					if (!(build == LEFT ? output.row(match, record) : output.row(record, match)))
+						return false;
+			}
+			return true;
+		}
+
+		for (RecordCell record = probeInput.next(); record != null; record = probeInput.next()) {
+			Object key = key(probe, record);
+			if (key != null)
+				spill(partitions, probe, key, record, level);
+		}
+		boolean more = true;
+		for (int i = 0; i < PARTITIONS; i++) {
+			SpillFile buildPartition = partitions[build][i];
+			SpillFile probePartition = partitions[probe][i];
+			try {
+				if (more && buildPartition != null && probePartition != null)
+					more = join(build, buildPartition, maxRecords, probePartition, output, level + 1);
+			} finally {
+				close(buildPartition);
+				close(probePartition);
+			}
+		}
+		return more;
+	}
+
+	private Object key(int side, RecordCell record) {
+		int column = keyColumns[side];
+		if (column == 0)
+			return doubleKeys ? (Object) (double) record.getRowId() : (Object) (long) record.getRowId();
+		PayLoad payload = record.getPayload();
+		if (payload.isNull(column - 1))
+			return null;
+		DataTypes type = schemas[side].getType(column);
+		if (type == DataTypes.TEXT)
+			return payload.getText(column - 1);
+		if (type.isDouble())
+			// 0.0 and -0.0 are the same key
+			return payload.getDouble(column - 1) + 0.0;
+		return doubleKeys ? (Object) (double) payload.getLong(column - 1) : (Object) payload.getLong(column - 1);
+	}
+
+	private void spill(SpillFile[][] partitions, int side, Object key, RecordCell record, int level)
+			throws IOException {
+		int hash = key.hashCode() + 0x61C88647 * (level + 1);
+		hash *= 0x9E3779B9;
+		int partition = ((hash ^ (hash >>> 16)) >>> 1) % PARTITIONS;
+		if (partitions[side][partition] == null) {
+			partitions[side][partition] = new SpillFile(spillDirectory, "join", schemas[side], projections[side]);
+			spills.add(partitions[side][partition]);
+		}
+		partitions[side][partition].write(record);
+	}
+
+	private void close(SpillFile partition) throws IOException {
+		if (partition != null) {
+			spills.remove(partition);
+			partition.close();
+		}
+	}
+
+	/**
+	 * Deletes the partition files that were not joined yet, e.g. after a scan
+	 * failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (SpillFile partition : spills)
+			partition.close();
+		spills.clear();
+	}
+}
@@ -0,0 +1,746 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Secondary index on one column of a table, kept in its own .ndx file next to
+ * the table file. The file is a B+tree in the page format of the table files,
+ * ordered by (column value, rowid), so the entries of one value are the rowid
+ * list of that value. NULL values are not indexed.
+ *
+ * Leaf cells are entries: the key followed by the rowid (4). Keys of integer,
+ * date and datetime columns are stored as long (8), of real and double columns
+ * as double (8) and text as its length (1) and bytes. Internal node cells are
+ * (left child page (4), largest entry of the left child), the right most child
+ * is kept in the page header like in table files.
+ *
+ * Searches hold the lock of the index shared and changes hold it
+ * exclusively, the pages of an index are not latched one by one.
+ */
+public class Index {
+
+	/* Page 0 of the file header */
+	private static final int FILE_MAGIC = 0x44424958;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_PAGE_SIZE = 4;
+	private static final int HEADER_ROOT_PAGE = 8;
+	private static final int HEADER_KEY_TYPE = 12;
+	private static final int HEADER_LENGTH = 16;
+
+	/* Page header, same layout as the pages of a table */
+	private static final int PAGE_CELL_COUNT = 2;
+	private static final int PAGE_CONTENT_START = 4;
+	private static final int PAGE_NEXT = 8;
+	private static final int PAGE_HEADER_SIZE = 12;
+
+	private final String indexName;
+	private final String columnName;
+	private final int column;
+	private final DataTypes type;
+	private final String fileName;
+	private int pageSize;
+	private int rootPage = 1;
+	private PageStore store;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private Index(String path, String indexName, TableSchema schema, String columnName) throws Exception {
+		int index = schema.getColumnIndex(columnName);
+		if (index < 1)
+			throw new Exception("Could not find column '" + columnName + "'");
+		this.indexName = indexName;
+		this.columnName = columnName;
+		this.column = index - 1;
+		this.type = schema.getType(index);
+		this.fileName = path + "/" + indexName + ".ndx";
+	}
+
+	/**
+	 * Creates an empty index file, an existing file is overwritten.
+	 */
+	public static Index create(String path, String indexName, TableSchema schema, String columnName, int pageSize)
+			throws Exception {
+		Index index = new Index(path, indexName, schema, columnName);
+		index.pageSize = pageSize;
+		index.store = PageStore.open(index.fileName, pageSize);
+		index.store.truncate();
+		index.store.allocatePage();
+		index.store.allocatePage();
+
+		Page header = index.store.pin(0);
+		try {
+			header.writeInt(HEADER_MAGIC, FILE_MAGIC);
+			header.writeInt(HEADER_PAGE_SIZE, pageSize);
+			header.writeInt(HEADER_KEY_TYPE, index.type.getHeader());
+		} finally {
+			index.store.unpin(header);
+		}
+		index.writeRoot(1);
+		index.setHeaders(1, NodeTypes.IndexLeafNode);
+		return index;
+	}
+
+	public static Index open(String path, String indexName, TableSchema schema, String columnName) throws Exception {
+		Index index = new Index(path, indexName, schema, columnName);
+		index.pageSize = readPageSize(index.fileName);
+		index.store = PageStore.open(index.fileName, index.pageSize);
+		index.reload();
+		return index;
+	}
+
+	/**
+	 * Reads the root page from the file header again, after the pages were
+	 * rolled back.
+	 */
+	public void reload() throws IOException {
+		lock.writeLock().lock();
+		try {
+			Page header = store.pin(0);
+			try {
+				rootPage = header.readInt(HEADER_ROOT_PAGE);
+			} finally {
+				store.unpin(header);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static int readPageSize(String fileName) throws IOException, InvalidFileException {
+		try (FileChannel file = new RandomAccessFile(fileName, "r").getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while (header.hasRemaining() && file.read(header, header.position()) > 0)
+				;
+			if (header.hasRemaining())
+				throw new InvalidFileException(fileName + " is not a DavisBase index file.");
+			int magic = header.getInt(HEADER_MAGIC);
+			int pageSize = header.getInt(HEADER_PAGE_SIZE);
+			if (magic != FILE_MAGIC || !Table.isValidPageSize(pageSize))
+				throw new InvalidFileException(fileName + " is not a DavisBase index file.");
+			return pageSize;
+		}
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public String getColumnName() {
+		return columnName;
+	}
+
+	/**
+	 * Payload column of the indexed column, 0 is the first column after rowid.
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void flush() throws IOException {
+		store.flush();
+	}
+
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * Returns the key of the indexed column of the payload, null if the value
+	 * is NULL.
+	 */
+	public Predicate.Literal key(PayLoad payload) {
+		if (payload.isNull(column))
+			return null;
+		if (type == DataTypes.TEXT)
+			return Predicate.Literal.ofText(payload.getText(column));
+		if (type == DataTypes.REAL)
+			return Predicate.Literal.ofDouble((float) payload.getDouble(column));
+		if (type.isDouble())
+			return Predicate.Literal.ofDouble(payload.getDouble(column));
+		return Predicate.Literal.ofLong(payload.getLong(column));
+	}
+
+	/**
+	 * Adds the entry of a record, records with a NULL value are not indexed.
+	 */
+	public void insert(PayLoad payload, int rowid) throws IOException {
+		Predicate.Literal key = key(payload);
+		if (key == null)
+			return;
+		lock.writeLock().lock();
+		try {
+			insert(key, rowid);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void delete(PayLoad payload, int rowid) throws IOException {
+		Predicate.Literal key = key(payload);
+		if (key == null)
+			return;
+		lock.writeLock().lock();
+		try {
+			delete(key, rowid);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Moves the entry of a record whose indexed value was changed.
+	 */
+	public void update(PayLoad oldPayload, PayLoad newPayload, int rowid) throws IOException {
+		Predicate.Literal oldKey = key(oldPayload);
+		Predicate.Literal newKey = key(newPayload);
+		if (oldKey != null && newKey != null && compareKeys(oldKey, newKey) == 0)
+			return;
+		lock.writeLock().lock();
+		try {
+			if (oldKey != null)
+				delete(oldKey, rowid);
+			if (newKey != null)
+				insert(newKey, rowid);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void insert(Predicate.Literal key, int rowid) throws IOException {
+		// internal pages from the root down to the leaf, needed to carry splits up
+		List<Integer> path = new ArrayList<>();
+		int page = rootPage;
+		while (!isLeaf(page)) {
+			path.add(page);
+			page = findChildPage(page, key, rowid);
+		}
+
+		byte[] cell = encodeEntry(key, rowid);
+		int index = findFirstEntry(page, key, rowid);
+		if (canInsert(page, cell.length))
+			insertCellAt(page, index, cell);
+		else
+			splitLeafPage(page, index, cell, path);
+	}
+
+	private void delete(Predicate.Literal key, int rowid) throws IOException {
+		int page = findLeafPage(key, rowid);
+		int index = findFirstEntry(page, key, rowid);
+		List<byte[]> cells = readCells(page);
+		if (index < cells.size()) {
+			Page p = store.pin(page);
+			try {
+				int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (index * 2));
+				if (compareEntry(p, loc, key, rowid) != 0)
+					return;
+			} finally {
+				store.unpin(p);
+			}
+			cells.remove(index);
+			writeCells(page, cells);
+		}
+	}
+
+	/**
+	 * Returns the rowids of the entries of the key in rowid order. They are
+	 * read from the leaf chain as they are asked for, the lock is only held
+	 * within a call, so the index may change in between.
+	 */
+	public RowIdSource lookup(Predicate.Literal key) {
+		return new KeyEntries(key);
+	}
+
+	private final class KeyEntries implements RowIdSource {
+		private final Predicate.Literal key;
+		/* The entries from (key, nextRowId) on are still to be read. */
+		private long nextRowId = Long.MIN_VALUE;
+		private int page = -1;
+		private long version = -1;
+		private int index;
+		private boolean done = false;
+
+		KeyEntries(Predicate.Literal key) {
+			this.key = key;
+		}
+
+		@Override
+		public long next() throws IOException {
+			lock.readLock().lock();
+			try {
+				while (!done) {
+					if (page == -1) {
+						page = findLeafPage(key, nextRowId);
+						index = findFirstEntry(page, key, nextRowId);
+						version = -1;
+					}
+					Page p = store.pin(page);
+					try {
+						if (version != -1 && p.getVersion() != version) {
+							// the leaf changed since the last call, find the next entry again
+							page = -1;
+							continue;
+						}
+						version = p.getVersion();
+						if (index >= p.readUnsignedShort(PAGE_CELL_COUNT)) {
+							page = p.readInt(PAGE_NEXT);
+							index = 0;
+							version = -1;
+							done = page == 0xFFFFFFFF;
+							continue;
+						}
+						int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (index * 2));
+						if (compareKey(p, loc, key) != 0) {
+							done = true;
+							break;
+						}
+						int rowid = p.readInt(loc + keySize(p, loc));
+						nextRowId = rowid + 1L;
+						index++;
+						return rowid;
+					} finally {
+						store.unpin(p);
+					}
+				}
+				return -1;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Estimates the fraction of the entries with a key between low and high
+	 * from where the bounds fall in the tree, without reading the entries in
+	 * between. A null bound leaves that end of the range open.
+	 */
+	public double estimate(Predicate.Literal low, boolean lowInclusive, Predicate.Literal high, boolean highInclusive)
+			throws IOException {
+		lock.readLock().lock();
+		try {
+			double start = low == null ? 0 : position(low, lowInclusive ? Long.MIN_VALUE : Long.MAX_VALUE);
+			double end = high == null ? 1 : position(high, highInclusive ? Long.MAX_VALUE : Long.MIN_VALUE);
+			return Math.max(0, end - start);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Fraction of the entries that come before the entry, counting the
+	 * children of every page on the way down as equal.
+	 */
+	private double position(Predicate.Literal key, long rowid) throws IOException {
+		double position = 0;
+		double width = 1;
+		int page = rootPage;
+		while (!isLeaf(page)) {
+			Page p = store.pin(page);
+			try {
+				int children = p.readUnsignedShort(PAGE_CELL_COUNT) + 1;
+				int child = findChild(p, key, rowid);
+				width /= children;
+				position += child * width;
+			} finally {
+				store.unpin(p);
+			}
+			page = findChildPage(page, key, rowid);
+		}
+		Page p = store.pin(page);
+		try {
+			int entries = p.readUnsignedShort(PAGE_CELL_COUNT);
+			return entries == 0 ? position : position + width * findFirstEntry(page, key, rowid) / entries;
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	/**
+	 * Returns the rowids of the entries with a key between low and high, in key
+	 * order. A null bound leaves that end of the range open.
+	 */
+	public int[] search(Predicate.Literal low, boolean lowInclusive, Predicate.Literal high, boolean highInclusive)
+			throws IOException {
+		lock.readLock().lock();
+		try {
+			return scan(low, lowInclusive, high, highInclusive);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int[] scan(Predicate.Literal low, boolean lowInclusive, Predicate.Literal high, boolean highInclusive)
+			throws IOException {
+		int[] rowids = new int[16];
+		int count = 0;
+
+		// an exclusive low bound starts after the last entry of the low key
+		long lowRowId = lowInclusive ? Long.MIN_VALUE : Long.MAX_VALUE;
+		int page = findLeafPage(low, lowRowId);
+		int index = low == null ? 0 : findFirstEntry(page, low, lowRowId);
+		while (page != 0xFFFFFFFF) {
+			Page p = store.pin(page);
+			try {
+				int cellCount = p.readUnsignedShort(PAGE_CELL_COUNT);
+				for (; index < cellCount; index++) {
+					int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (index * 2));
+					if (high != null) {
+						int comparison = compareKey(p, loc, high);
+						if (comparison > 0 || (comparison == 0 && !highInclusive))
+							return Arrays.copyOf(rowids, count);
+					}
+					if (count == rowids.length)
+						rowids = Arrays.copyOf(rowids, count * 2);
+					rowids[count++] = p.readInt(loc + keySize(p, loc));
+				}
+				page = p.readInt(PAGE_NEXT);
+				index = 0;
+			} finally {
+				store.unpin(p);
+			}
+		}
+		return Arrays.copyOf(rowids, count);
+	}
+
+	private boolean isLeaf(int page) throws IOException {
+		Page p = store.pin(page);
+		try {
+			return p.readByte(0) == NodeTypes.IndexLeafNode.getValue();
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	/**
+	 * Descends to the leaf that holds the entry, a null key descends to the
+	 * first leaf.
+	 */
+	private int findLeafPage(Predicate.Literal key, long rowid) throws IOException {
+		int page = rootPage;
+		while (!isLeaf(page))
+			page = findChildPage(page, key, rowid);
+		return page;
+	}
+
+	/**
+	 * Returns the page of the child that holds the entry, a null key gives the
+	 * first child.
+	 */
+	private int findChildPage(int page, Predicate.Literal key, long rowid) throws IOException {
+		Page p = store.pin(page);
+		try {
+			int cells = p.readUnsignedShort(PAGE_CELL_COUNT);
+			int child = key == null ? 0 : findChild(p, key, rowid);
+			return child < cells ? p.readInt(p.readUnsignedShort(PAGE_HEADER_SIZE + (child * 2))) : p.readInt(PAGE_NEXT);
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	/**
+	 * Binary search for the first child whose largest entry is not smaller than
+	 * the entry, the number of cells for the right most child.
+	 */
+	private int findChild(Page p, Predicate.Literal key, long rowid) {
+		int low = 0;
+		int high = p.readUnsignedShort(PAGE_CELL_COUNT) - 1;
+		int child = high + 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (mid * 2));
+			if (compareEntry(p, loc + 4, key, rowid) >= 0) {
+				child = mid;
+				high = mid - 1;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return child;
+	}
+
+	/**
+	 * Binary search for the index of the first entry of the leaf that is not
+	 * smaller than the given entry.
+	 */
+	private int findFirstEntry(int page, Predicate.Literal key, long rowid) throws IOException {
+		Page p = store.pin(page);
+		try {
+			int low = 0;
+			int high = p.readUnsignedShort(PAGE_CELL_COUNT);
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (mid * 2));
+				if (compareEntry(p, loc, key, rowid) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	private int keySize(Page p, int pos) {
+		return type == DataTypes.TEXT ? 1 + (p.readByte(pos) & 0xFF) : 8;
+	}
+
+	private int compareEntry(Page p, int pos, Predicate.Literal key, long rowid) {
+		int comparison = compareKey(p, pos, key);
+		if (comparison != 0)
+			return comparison;
+		return Long.compare(p.readInt(pos + keySize(p, pos)), rowid);
+	}
+
+	/**
+	 * Compares the key stored at pos with the key, text is compared ignoring
+	 * case like in WHERE conditions.
+	 */
+	private int compareKey(Page p, int pos, Predicate.Literal key) {
+		if (type == DataTypes.TEXT) {
+			int length = p.readByte(pos) & 0xFF;
+			int n = Math.min(length, key.text.length);
+			for (int i = 0; i < n; i++) {
+				int a = Character.toLowerCase(p.readByte(pos + 1 + i) & 0xFF);
+				int b = Character.toLowerCase(key.text[i] & 0xFF);
+				if (a != b)
+					return a - b;
+			}
+			return Integer.compare(length, key.text.length);
+		}
+		if (type.isDouble())
+			return Double.compare(p.readDouble(pos), key.doubleValue);
+		return Long.compare(p.readLong(pos), key.longValue);
+	}
+
+	private int compareKeys(Predicate.Literal a, Predicate.Literal b) {
+		byte[] entry = encodeEntry(a, 0);
+		Page p = new Page(fileName, -1, ByteBuffer.wrap(entry));
+		return compareKey(p, 0, b);
+	}
+
+	private byte[] encodeEntry(Predicate.Literal key, int rowid) {
+		ByteBuffer buffer;
+		if (type == DataTypes.TEXT) {
+			buffer = ByteBuffer.allocate(1 + key.text.length + 4);
+			buffer.put((byte) key.text.length).put(key.text);
+		} else if (type.isDouble()) {
+			buffer = ByteBuffer.allocate(12);
+			buffer.putDouble(key.doubleValue);
+		} else {
+			buffer = ByteBuffer.allocate(12);
+			buffer.putLong(key.longValue);
+		}
+		buffer.putInt(rowid);
+		return buffer.array();
+	}
+
+	private void writeRoot(int page) throws IOException {
+		rootPage = page;
+		Page header = store.pin(0);
+		try {
+			header.writeInt(HEADER_ROOT_PAGE, page);
+		} finally {
+			store.unpin(header);
+		}
+	}
+
+	private void setHeaders(int page, NodeTypes nodeType) throws IOException {
+		Page p = store.pin(page);
+		try {
+			p.writeByte(0, nodeType.getValue());
+			p.writeShort(PAGE_CELL_COUNT, 0);
+			p.writeShort(PAGE_CONTENT_START, pageSize);
+			p.writeInt(PAGE_NEXT, 0xFFFFFFFF);
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	private boolean canInsert(int page, int size) throws IOException {
+		Page p = store.pin(page);
+		try {
+			int used = PAGE_HEADER_SIZE + (2 * p.readUnsignedShort(PAGE_CELL_COUNT)) + pageSize
+					- p.readUnsignedShort(PAGE_CONTENT_START);
+			// size + 2, considering the pointer to the cell in the header
+			return (size + 2) < (pageSize - used);
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	/**
+	 * Moves the upper half of the leaf entries to a new right sibling and adds
+	 * the new leaf to the parent.
+	 */
+	private void splitLeafPage(int page, int index, byte[] cell, List<Integer> path) throws IOException {
+		List<byte[]> cells = readCells(page);
+		cells.add(index, cell);
+		int split = findSplitPoint(cells);
+
+		int newPage = store.allocatePage();
+		setHeaders(newPage, NodeTypes.IndexLeafNode);
+		int nextPage = readNext(page);
+		writeCells(page, cells.subList(0, split));
+		writeCells(newPage, cells.subList(split, cells.size()));
+		writeNext(newPage, nextPage);
+		writeNext(page, newPage);
+
+		insertToParent(path, page, cells.get(split - 1), newPage);
+	}
+
+	/**
+	 * Moves the upper half of the cells of an internal node to a new right
+	 * sibling. The middle cell moves up to the parent, its child becomes the
+	 * right most child of the left node.
+	 */
+	private void splitNodePage(int page, int index, byte[] cell, List<Integer> path) throws IOException {
+		List<byte[]> cells = readCells(page);
+		cells.add(index, cell);
+		int rightMost = readNext(page);
+
+		int mid = cells.size() / 2;
+		byte[] middle = cells.get(mid);
+
+		int newPage = store.allocatePage();
+		setHeaders(newPage, NodeTypes.IndexInternalNode);
+		writeCells(page, cells.subList(0, mid));
+		writeNext(page, ByteBuffer.wrap(middle).getInt(0));
+		writeCells(newPage, cells.subList(mid + 1, cells.size()));
+		writeNext(newPage, rightMost);
+
+		insertToParent(path, page, Arrays.copyOfRange(middle, 4, middle.length), newPage);
+	}
+
+	/**
+	 * Links a page that was split in two into its parent, see
+	 * Table.insertToParent. A split root is replaced by a new root.
+	 */
+	private void insertToParent(List<Integer> path, int left, byte[] separator, int right) throws IOException {
+		byte[] cell = ByteBuffer.allocate(4 + separator.length).putInt(left).put(separator).array();
+		if (path.isEmpty()) {
+			int root = store.allocatePage();
+			setHeaders(root, NodeTypes.IndexInternalNode);
+			writeNext(root, right);
+			insertCellAt(root, 0, cell);
+			writeRoot(root);
+			return;
+		}
+
+		int parent = path.remove(path.size() - 1);
+		int index;
+		Page p = store.pin(parent);
+		try {
+			int count = p.readUnsignedShort(PAGE_CELL_COUNT);
+			index = count;
+			for (int i = 0; i < count; i++) {
+				int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (i * 2));
+				if (p.readInt(loc) == left) {
+					p.writeInt(loc, right);
+					index = i;
+					break;
+				}
+			}
+			if (index == count)
+				p.writeInt(PAGE_NEXT, right);
+		} finally {
+			store.unpin(p);
+		}
+
+		if (canInsert(parent, cell.length))
+			insertCellAt(parent, index, cell);
+		else
+			splitNodePage(parent, index, cell, path);
+	}
+
+	private static int findSplitPoint(List<byte[]> cells) {
+		int total = 0;
+		for (byte[] cell : cells)
+			total += cell.length + 2;
+		int size = 0;
+		for (int i = 0; i < cells.size() - 1; i++) {
+			size += cells.get(i).length + 2;
+			if (size >= total / 2)
+				return i + 1;
+		}
+		return cells.size() - 1;
+	}
+
+	private void insertCellAt(int page, int index, byte[] cell) throws IOException {
+		Page p = store.pin(page);
+		try {
+			int count = p.readUnsignedShort(PAGE_CELL_COUNT);
+			int loc = p.readUnsignedShort(PAGE_CONTENT_START) - cell.length;
+			p.write(loc, cell);
+			for (int i = count; i > index; i--)
+				p.writeShort(PAGE_HEADER_SIZE + (i * 2), p.readUnsignedShort(PAGE_HEADER_SIZE + ((i - 1) * 2)));
+			p.writeShort(PAGE_HEADER_SIZE + (index * 2), loc);
+			p.writeShort(PAGE_CELL_COUNT, count + 1);
+			p.writeShort(PAGE_CONTENT_START, loc);
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	private List<byte[]> readCells(int page) throws IOException {
+		Page p = store.pin(page);
+		try {
+			// internal node cells carry the child page in front of the entry
+			int prefix = p.readByte(0) == NodeTypes.IndexLeafNode.getValue() ? 0 : 4;
+			int count = p.readUnsignedShort(PAGE_CELL_COUNT);
+			List<byte[]> cells = new ArrayList<>(count + 1);
+			for (int i = 0; i < count; i++) {
+				int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (i * 2));
+				byte[] cell = new byte[prefix + keySize(p, loc + prefix) + 4];
+				p.read(loc, cell);
+				cells.add(cell);
+			}
+			return cells;
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	/**
+	 * Replaces the cells of a page, packing them against the end of the page.
+	 */
+	private void writeCells(int page, List<byte[]> cells) throws IOException {
+		Page p = store.pin(page);
+		try {
+			int loc = pageSize;
+			for (int i = 0; i < cells.size(); i++) {
+				byte[] cell = cells.get(i);
+				loc -= cell.length;
+				p.write(loc, cell);
+				p.writeShort(PAGE_HEADER_SIZE + (i * 2), loc);
+			}
+			p.writeShort(PAGE_CELL_COUNT, cells.size());
+			p.writeShort(PAGE_CONTENT_START, loc);
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	private int readNext(int page) throws IOException {
+		Page p = store.pin(page);
+		try {
+			return p.readInt(PAGE_NEXT);
+		} finally {
+			store.unpin(p);
+		}
+	}
+
+	private void writeNext(int page, int next) throws IOException {
+		Page p = store.pin(page);
+		try {
+			p.writeInt(PAGE_NEXT, next);
+		} finally {
+			store.unpin(p);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * PageStore that maps the table file into memory. Pages are slices of the
+ * mapping, so reads and writes go straight to the OS page cache without a
+ * system call or a copy.
+ *
+ * The file is mapped in segments that are never remapped: when the pages
+ * run past the last segment a new one is mapped after it, as large as the
+ * file mapped so far up to MAX_SEGMENT. So a file takes a few mappings, and
+ * grows by whole segments rather than a page at a time. Close cuts the file
+ * back to the pages allocated.
+ *
+ * Changed pages are logged to the WriteAheadLog on flush like buffered ones,
+ * but the OS may write a mapped page to the file before that, so a crash in
+ * the middle of a statement can leave part of it in the file. For the same
+ * reason BEGIN is refused while table files are mapped, see Transaction.
+ */
+public class MappedPageStore implements PageStore {
+
+	private final String fileName;
+	private final int pageSize;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	/* Mapped segments and the first page number of each. */
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private int[] segmentStarts = new int[8];
+	private int mappedPages = 0;
+	private volatile int pageCount;
+	/* Pages past this one were never written since the file was opened. */
+	private int usedPages;
+	/* Pages in use so far, may be longer than pageCount. */
+	private volatile Page[] pages = new Page[0];
+	/* Pages changed since the last commit. */
+	private final Set<Page> changed = new LinkedHashSet<>();
+
+	private static final int MIN_SEGMENT = 64 * 1024;
+	private static final int MAX_SEGMENT = 64 * 1024 * 1024;
+
+	/* Open stores, a checkpoint forces their mappings. */
+	private static final Set<MappedPageStore> openStores = new HashSet<>();
+
+	public MappedPageStore(String fileName, int pageSize) throws IOException {
+		this.fileName = fileName;
+		this.pageSize = pageSize;
+		this.file = new RandomAccessFile(fileName, "rw");
+		this.channel = file.getChannel();
+		pageCount = (int) (channel.size() / pageSize);
+		usedPages = pageCount;
+		if (pageCount > 0)
+			mapTo(pageCount - 1);
+		synchronized (openStores) {
+			openStores.add(this);
+		}
+	}
+
+	/**
+	 * Commits the changes of all open stores.
+	 */
+	public static void commitAll() throws IOException {
+		synchronized (openStores) {
+			for (MappedPageStore store : openStores)
+				store.flush();
+		}
+	}
+
+	/**
+	 * Restores the pages of all open stores changed since their last commit.
+	 */
+	public static void rollbackAll() {
+		synchronized (openStores) {
+			for (MappedPageStore store : openStores)
+				for (Page page : store.takeChanged())
+					page.rollback();
+		}
+	}
+
+	/**
+	 * Forces the mappings of all open stores to disk.
+	 */
+	public static void forceAll() {
+		synchronized (openStores) {
+			for (MappedPageStore store : openStores)
+				store.force();
+		}
+	}
+
+	private synchronized void force() {
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+	}
+
+	/**
+	 * Maps segments until the page is mapped. Mapping past the end of the
+	 * file extends it.
+	 */
+	private void mapTo(int pageNumber) throws IOException {
+		while (pageNumber >= mappedPages) {
+			long bytes = Math.max(MIN_SEGMENT, Math.min(MAX_SEGMENT, (long) mappedPages * pageSize));
+			int size = (int) Math.max(1, bytes / pageSize);
+			if (segments.size() == segmentStarts.length)
+				segmentStarts = Arrays.copyOf(segmentStarts, segmentStarts.length * 2);
+			segmentStarts[segments.size()] = mappedPages;
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) mappedPages * pageSize, (long) size * pageSize));
+			mappedPages += size;
+		}
+		if (pageNumber >= pages.length)
+			pages = Arrays.copyOf(pages, Math.max(pageNumber + 1, pages.length * 2));
+	}
+
+	@Override
+	public synchronized Page pin(int pageNumber) throws IOException {
+		if (pageNumber < 0 || pageNumber >= pageCount)
+			throw new IOException("Page " + pageNumber + " is outside of " + fileName);
+		Page page = pages[pageNumber];
+		if (page == null) {
+			int segment = Arrays.binarySearch(segmentStarts, 0, segments.size(), pageNumber);
+			if (segment < 0)
+				segment = -segment - 2;
+			int offset = (pageNumber - segmentStarts[segment]) * pageSize;
+			page = new Page(fileName, pageNumber, segments.get(segment).slice(offset, pageSize));
+			pages[pageNumber] = page;
+		}
+		page.pin();
+		return page;
+	}
+
+	@Override
+	public synchronized void unpin(Page page) {
+		page.unpin();
+		if (page.isUnlogged())
+			changed.add(page);
+	}
+
+	private synchronized List<Page> takeChanged() {
+		List<Page> pages = new ArrayList<>(changed);
+		changed.clear();
+		return pages;
+	}
+
+	@Override
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	@Override
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	@Override
+	public synchronized int allocatePage() throws IOException {
+		int pageNumber = pageCount;
+		mapTo(pageNumber);
+		pageCount++;
+		if (pageNumber < usedPages) {
+			// the page was cut off by truncate, it still holds its old content
+			Page page = pin(pageNumber);
+			try {
+				page.write(0, new byte[pageSize]);
+			} finally {
+				unpin(page);
+			}
+		} else {
+			usedPages = pageNumber + 1;
+		}
+		return pageNumber;
+	}
+
+	@Override
+	public synchronized void truncate() throws IOException {
+		// the old segments stay mapped, slices of them may still be in use
+		pageCount = 0;
+		pages = new Page[0];
+		changed.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (Transaction.isActive())
+			return;
+		// the writes are already in the OS page cache, only the log is needed
+		for (Page page : takeChanged())
+			WriteAheadLog.log(page);
+		WriteAheadLog.commit();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		synchronized (openStores) {
+			openStores.remove(this);
+		}
+		force();
+		file.setLength((long) pageCount * pageSize);
+		channel.close();
+	}
+}
@@ -1,5 +1,5 @@
 public enum NodeTypes {
-    InternalNode(0x05), LeafNode(0x0D);
+    IndexInternalNode(0x02), InternalNode(0x05), IndexLeafNode(0x0A), LeafNode(0x0D);
 
     private int Value;
 
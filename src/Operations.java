@@ -1,7 +1,6 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.Map.Entry;
 
 public class Operations {
 
@@ -22,6 +21,7 @@ public class Operations {
 					columnMeta[5] = "NO";
 				insertToMetaColumns(columnMeta);
 			}
+			Catalog.invalidate(tableName);
 
 		} catch (Exception e) {
 			System.out.println("Failed to create Table.");
@@ -30,24 +30,121 @@ public class Operations {
 
 	private static void insertToMetaTables(String tableName) throws Exception {
 		String path = "data/catalog";
-		Table metaTable = new Table();
-		metaTable.initialize(path, "davisbase_tables");
-		metaTable.insertToMeta(new String[] { "rowid", "tableName" },
-				new String[] { String.valueOf(metaTable.fetchNextRowID()), tableName });
+		Table metaTable = TableManager.acquire(path, "davisbase_tables");
+		try {
+			metaTable.insertToMeta(new String[] { "rowid", "tableName" },
+					new String[] { String.valueOf(metaTable.fetchNextRowID()), tableName });
+			metaTable.flush();
+		} finally {
+			TableManager.release(metaTable);
+		}
 	}
 
 	private static void insertToMetaColumns(String[] values) throws Exception {
 		String path = "data/catalog";
-		Table metaCol = new Table();
-		metaCol.initialize(path, "davisbase_columns");
-		metaCol.insertToMeta(
-				new String[] { "rowid", "tableName", "column_name", "data_type", "ordinal_position", "is_nullable" },
-				values);
+		Table metaCol = TableManager.acquire(path, "davisbase_columns");
+		try {
+			metaCol.insertToMeta(
+					new String[] { "rowid", "tableName", "column_name", "data_type", "ordinal_position", "is_nullable" },
+					values);
+			metaCol.flush();
+		} finally {
+			TableManager.release(metaCol);
+		}
+	}
+
+	private static void insertToMetaIndexes(String indexName, String tableName, String columnName) throws Exception {
+		String path = "data/catalog";
+		Table metaIndex = TableManager.acquire(path, "davisbase_indexes");
+		try {
+			metaIndex.insertToMeta(new String[] { "rowid", "index_name", "table_name", "column_name" }, new String[] {
+					String.valueOf(metaIndex.fetchNextRowID()), indexName, tableName, columnName });
+			metaIndex.flush();
+		} finally {
+			TableManager.release(metaIndex);
+		}
+	}
+
+	/**
+	 * Builds an index on a column of a table from its current records and
+	 * records it in davisbase_indexes. The index is kept up to date from then on.
+	 */
+	public static void createIndex(String path, String indexName, String tableName, String columnName)
+			throws Exception {
+		if (!tableExists(path, tableName)) {
+			System.out.println(tableName + " Table does not exist.");
+			return;
+		}
+		if (new File(path + "/" + indexName + ".ndx").exists()) {
+			System.out.println("Index " + indexName + " already exists.");
+			return;
+		}
+		Table table = TableManager.acquire(path, tableName);
+		// readers see the index list of the table, they wait until the index is complete
+		table.lockExclusive();
+		try {
+			TableSchema schema = table.getSchema();
+			int column = schema.getColumnIndex(columnName);
+			if (column == -1)
+				throw new Exception("Could not find column '" + columnName + "'");
+			if (column == 0) {
+				System.out.println("The table is already ordered by rowid.");
+				return;
+			}
+			if (table.getIndex(column - 1) != null) {
+				System.out.println("Column " + columnName + " is already indexed.");
+				return;
+			}
+
+			Index index = Index.create(path, indexName, schema, columnName, table.getPageSize());
+			boolean[] projection = new boolean[column];
+			projection[column - 1] = true;
+			try (RecordCursor cursor = table.openCursor(new String[0], projection)) {
+				for (RecordCell rec = cursor.next(); rec != null; rec = cursor.next())
+					index.insert(rec.getPayload(), rec.getRowId());
+				index.flush();
+			} catch (Exception e) {
+				// a partly built file would make every retry fail as already existing
+				index.close();
+				File indexFile = new File(index.getFileName());
+				BufferPool.discard(indexFile.getPath());
+				indexFile.delete();
+				// the log may hold pages of the deleted file, they must not bring it back
+				BufferPool.checkpoint();
+				throw e;
+			}
+			table.addIndex(index);
+			insertToMetaIndexes(indexName, tableName, columnName);
+			Catalog.invalidate(tableName);
+		} finally {
+			table.unlockExclusive();
+			TableManager.release(table);
+		}
+		System.out.println("Created index " + indexName + " on " + tableName + ".");
+	}
+
+	/**
+	 * Rewrites the file of the table without the free space left on its pages.
+	 */
+	public static void vacuum(String path, String tableName) throws Exception {
+		if (!tableExists(path, tableName)) {
+			System.out.println(tableName + " Table does not exist.");
+			return;
+		}
+		Table table = TableManager.acquire(path, tableName);
+		table.lockExclusive();
+		try {
+			int pages = table.vacuum();
+			System.out.println("Vacuumed " + tableName + ", " + pages + " pages freed.");
+		} finally {
+			table.unlockExclusive();
+			TableManager.release(table);
+		}
 	}
 
-	public static void makeFiles(String path, String table) throws IOException {
+	public static void makeFiles(String path, String table, int pageSize) throws IOException {
 		Table metaTable = new Table();
-		metaTable.createFile(path, table);
+		metaTable.createFile(path, table, pageSize);
 		metaTable.closeFile();
 	}
 
@@ -64,36 +161,125 @@ public class Operations {
 
 		if (!Operations.tableExists("data/catalog", "davisbase_tables")
 				&& !Operations.tableExists("data/catalog", "davisbase_columns")) {
-			makeFiles("data/catalog", "davisbase_tables");
+			makeFiles("data/catalog", "davisbase_tables", DavisBasePrompt.pageSize);
 
-			makeFiles("data/catalog", "davisbase_columns");
+			makeFiles("data/catalog", "davisbase_columns", DavisBasePrompt.pageSize);
 
 			Operations.createTable("data/catalog", "davisbase_tables", new String[] { "rowid int", "table_name text" });
 			Operations.createTable("data/catalog", "davisbase_columns", new String[] { "rowid int", "table_name text",
 					"column_name text", "data_type text", "ordinal_position int", "is_nullable text" });
 		}
+		// databases made before indexes were supported get the table on their next start
+		if (!Operations.tableExists("data/catalog", "davisbase_indexes")) {
+			makeFiles("data/catalog", "davisbase_indexes", DavisBasePrompt.pageSize);
+			Operations.createTable("data/catalog", "davisbase_indexes",
+					new String[] { "rowid int", "index_name text", "table_name text", "column_name text" });
+		}
+		Catalog.load();
 	}
 
 	public static void insert(String path, String tableName, String[] columnNames, String[] values) throws Exception {
-		Table table = new Table();
-		table.initialize(path, tableName);
-		table.insertToLeaf(columnNames, values);
-		System.out.println("Successfully inserted the record.");
+		Table table = TableManager.acquire(path, tableName);
+		try {
+			Transaction.lockForWrite(table);
+			table.insertToLeaf(columnNames, values);
+			table.flush();
+		} finally {
+			TableManager.release(table);
+		}
+		// a transaction reports its inserts once, at commit
+		if (Transaction.isActive())
+			Transaction.recordInserted();
+		else
+			System.out.println("Successfully inserted the record.");
 	}
 
 	public static void select(String path, String tableName, String[] columnNames, String[] condition)
 			throws Exception {
+		select(path, tableName, columnNames, condition, new String[0], new String[0], 0, -1);
+	}
+
+	/**
+	 * @param orderBy
+	 *            columns to sort by, each optionally followed by ASC or DESC
+	 * @param offset
+	 *            number of records to skip before the first one displayed
+	 * @param limit
+	 *            number of records to display, -1 for all
+	 */
+	public static void select(String path, String tableName, String[] columnNames, String[] condition,
+			String[] groupBy, String[] orderBy, long offset, long limit) throws Exception {
 		File file = new File(path + "/" + tableName + ".tbl");
 		if (!file.exists()) {
 			System.out.println(tableName + " Table does not exist.");
 			return;
 		}
-		Table table = new Table();
-		table.initialize(path, tableName);
-		Map<Integer, RecordCell> data = table.selectRecords(columnNames, condition);
+		Table table = TableManager.acquire(path, tableName);
+		table.lockShared();
+		try {
+			// the table may have been dropped while this statement waited for it
+			if (table.isClosed())
+				System.out.println(tableName + " Table does not exist.");
+			else
+				select(table, columnNames, condition, groupBy, orderBy, offset, limit);
+		} finally {
+			table.unlockShared();
+			TableManager.release(table);
+		}
+	}
 
-		Set<Entry<Integer, RecordCell>> dataSet = data.entrySet();
+	private static void select(Table table, String[] columnNames, String[] condition, String[] groupBy,
+			String[] orderBy, long offset, long limit) throws Exception {
+		boolean aggregates = groupBy.length > 0;
+		for (String col : columnNames)
+			aggregates |= Aggregate.isAggregate(col);
+		if (aggregates && orderBy.length > 0)
+			throw new Exception("ORDER BY can not be used with GROUP BY or aggregate functions.");
+		if (groupBy.length > 0) {
+			group(table, columnNames, condition, groupBy, offset, limit);
+			return;
+		}
+		if (aggregates) {
+			aggregate(table, columnNames, condition);
+			return;
+		}
 
+		TableSchema schema = table.getSchema();
+		boolean[] projection = projection(table, columnNames);
+		int[] orderColumns = new int[orderBy.length];
+		boolean[] descending = new boolean[orderBy.length];
+		for (int i = 0; i < orderBy.length; i++) {
+			String[] item = orderBy[i].split("\\s+");
+			orderColumns[i] = schema.getColumnIndex(item[0]);
+			if (orderColumns[i] == -1)
+				throw new Exception("Could not find column '" + item[0] + "'");
+			if (item.length > 2 || item.length == 2 && !item[1].equals("asc") && !item[1].equals("desc"))
+				throw new Exception("Expected ASC or DESC after ORDER BY " + item[0]);
+			descending[i] = item.length == 2 && item[1].equals("desc");
+			if (orderColumns[i] > 0)
+				projection[orderColumns[i] - 1] = true;
+		}
+
+		if (orderBy.length == 0) {
+			// the cursor stops reading once it has the records of the limit
+			try (RecordCursor cursor = table.openCursor(condition, projection, offset, limit)) {
+				print(table, columnNames, cursor);
+			}
+			return;
+		}
+		try (RecordCursor cursor = table.openCursor(condition, projection);
+				RecordSorter sorter = new RecordSorter(schema, orderColumns, descending, projection,
+						limit < 0 ? -1 : offset + limit, DavisBasePrompt.sortRecords, new File("data"))) {
+			for (RecordCell rec = cursor.next(); rec != null; rec = cursor.next())
+				sorter.add(rec);
+			for (long skipped = 0; skipped < offset; skipped++)
+				if (sorter.next() == null)
+					break;
+			print(table, columnNames, sorter);
+		}
+	}
+
+	private static void print(Table table, String[] columnNames, RecordSource records) throws Exception {
 		List<String> colmns = new ArrayList<>();
 		colmns.addAll(table.getColumnNames().values());
 
@@ -112,8 +298,7 @@ public class Operations {
 		System.out.println(colNames.toString());
 
 		int count = 0;
-		for (Map.Entry<Integer, RecordCell> entry : dataSet) {
-			RecordCell cellRecord = entry.getValue();
+		for (RecordCell cellRecord = records.next(); cellRecord != null; cellRecord = records.next()) {
 			PayLoad cellPayLoad = cellRecord.getPayload();
 
 			StringBuffer sb = new StringBuffer();
@@ -122,13 +307,310 @@ public class Operations {
 					if (i == 0)
 						sb.append(cellRecord.getRowId() + " | ");
 					else
-						sb.append(cellPayLoad.getData()[i - 1] + " | ");
+						sb.append(cellPayLoad.getString(i - 1) + " | ");
 			System.out.println(sb.toString());
 			count++;
 		}
 		System.out.println("\nFound total of " + count + " records.");
 	}
 
+	/**
+	 * Computes the aggregate functions of the select list in one pass over the
+	 * matching records, decoding only the columns they read. COUNT(*) of the
+	 * whole table is the record count kept in the table header.
+	 */
+	private static void aggregate(Table table, String[] columnNames, String[] condition) throws Exception {
+		TableSchema schema = table.getSchema();
+		Aggregate[] aggregates = new Aggregate[columnNames.length];
+		boolean[] projection = new boolean[Math.max(schema.getColumnCount() - 1, 0)];
+		boolean countOnly = true;
+		for (int i = 0; i < columnNames.length; i++) {
+			if (!Aggregate.isAggregate(columnNames[i]))
+				throw new Exception("Column '" + columnNames[i] + "' must be used in an aggregate function.");
+			aggregates[i] = Aggregate.parse(columnNames[i], schema);
+			if (aggregates[i].getPayloadColumn() >= 0)
+				projection[aggregates[i].getPayloadColumn()] = true;
+			countOnly &= aggregates[i].isCountAll();
+		}
+
+		if (countOnly && condition.length == 0) {
+			for (Aggregate aggregate : aggregates)
+				aggregate.setCount(table.totalNoRecords());
+		} else {
+			try (RecordCursor cursor = table.openCursor(condition, projection)) {
+				for (RecordCell rec = cursor.next(); rec != null; rec = cursor.next())
+					for (Aggregate aggregate : aggregates)
+						aggregate.add(rec);
+			}
+		}
+
+		StringBuffer colNames = new StringBuffer();
+		StringBuffer values = new StringBuffer();
+		for (Aggregate aggregate : aggregates) {
+			colNames.append(aggregate.getName() + " | ");
+			values.append(aggregate.getString() + " | ");
+		}
+		System.out.println(colNames.toString());
+		System.out.println(values.toString());
+	}
+
+	/**
+	 * Computes the aggregate functions of the select list for every group of
+	 * matching records with the same values in the GROUP BY columns.
+	 */
+	private static void group(Table table, String[] columnNames, String[] condition, String[] groupBy,
+			long offset, long limit) throws Exception {
+		TableSchema schema = table.getSchema();
+		boolean[] projection = new boolean[Math.max(schema.getColumnCount() - 1, 0)];
+		int[] keyColumns = new int[groupBy.length];
+		for (int i = 0; i < groupBy.length; i++) {
+			keyColumns[i] = schema.getColumnIndex(groupBy[i]);
+			if (keyColumns[i] == -1)
+				throw new Exception("Could not find column '" + groupBy[i] + "'");
+			if (keyColumns[i] > 0)
+				projection[keyColumns[i] - 1] = true;
+		}
+		// every item of the select list is a key column or an aggregate
+		List<Aggregate> aggregates = new ArrayList<>();
+		int[] items = new int[columnNames.length];
+		for (int i = 0; i < columnNames.length; i++) {
+			if (Aggregate.isAggregate(columnNames[i])) {
+				Aggregate aggregate = Aggregate.parse(columnNames[i], schema);
+				if (aggregate.getPayloadColumn() >= 0)
+					projection[aggregate.getPayloadColumn()] = true;
+				items[i] = -1 - aggregates.size();
+				aggregates.add(aggregate);
+			} else {
+				int key = 0;
+				while (key < groupBy.length && !groupBy[key].equalsIgnoreCase(columnNames[i].trim()))
+					key++;
+				if (key == groupBy.length)
+					throw new Exception("Column '" + columnNames[i] + "' must be in GROUP BY or an aggregate function.");
+				items[i] = key;
+			}
+		}
+
+		StringBuffer colNames = new StringBuffer();
+		for (String col : columnNames)
+			colNames.append(col.replace(" ", "") + " | ");
+		System.out.println(colNames.toString());
+
+		long[] count = new long[2];
+		try (HashAggregation aggregation = new HashAggregation(schema, keyColumns,
+				aggregates.toArray(new Aggregate[0]), projection, DavisBasePrompt.groupByGroups,
+				new File("data"))) {
+			try (RecordCursor cursor = table.openCursor(condition, projection)) {
+				for (RecordCell rec = cursor.next(); rec != null; rec = cursor.next())
+					aggregation.add(rec);
+			}
+			aggregation.finish((key, values) -> {
+				// groups before the offset are counted in count[1]
+				if (count[1] < offset) {
+					count[1]++;
+					return;
+				}
+				if (count[0] == limit)
+					return;
+				StringBuffer sb = new StringBuffer();
+				for (int item : items)
+					sb.append((item >= 0 ? key[item] : values[-1 - item].getString()) + " | ");
+				System.out.println(sb.toString());
+				count[0]++;
+			});
+		}
+		System.out.println("\nFound total of " + count[0] + " records.");
+	}
+
+	/**
+	 * Joins two tables on a column of each, ON left.column = right.column. The
+	 * select list, the ON columns and the condition may qualify a column with
+	 * its table name and must where both tables have it. A condition can only
+	 * use the columns of one of the tables, it filters that table's scan.
+	 */
+	public static void join(String leftPath, String leftName, String rightPath, String rightName, String on,
+			String[] columnNames, String[] condition, long offset, long limit) throws Exception {
+		for (String tableName : new String[] { leftName, rightName })
+			if (!tableExists(tableName.equals(leftName) ? leftPath : rightPath, tableName)) {
+				System.out.println(tableName + " Table does not exist.");
+				return;
+			}
+		if (leftName.equals(rightName)) {
+			System.out.println("A table can not be joined with itself.");
+			return;
+		}
+		Table left = TableManager.acquire(leftPath, leftName);
+		try {
+			Table right = TableManager.acquire(rightPath, rightName);
+			try {
+				lockShared(left, right);
+				try {
+					if (left.isClosed() || right.isClosed())
+						System.out.println((left.isClosed() ? leftName : rightName) + " Table does not exist.");
+					else
+						join(new Table[] { left, right }, new String[] { leftName, rightName }, on, columnNames,
+								condition, offset, limit);
+				} finally {
+					right.unlockShared();
+					left.unlockShared();
+				}
+			} finally {
+				TableManager.release(right);
+			}
+		} finally {
+			TableManager.release(left);
+		}
+	}
+
+	/**
+	 * Locks both tables shared, never waiting for one while holding the other:
+	 * a transaction may hold either of them exclusively and wait for the other.
+	 */
+	private static void lockShared(Table first, Table second) {
+		while (true) {
+			first.lockShared();
+			if (second.tryLockShared())
+				return;
+			first.unlockShared();
+			// wait until the second one is free, then try again
+			second.lockShared();
+			second.unlockShared();
+		}
+	}
+
+	private static void join(Table[] tables, String[] names, String on, String[] columnNames, String[] condition,
+			long offset, long limit) throws Exception {
+		TableSchema[] schemas = { tables[0].getSchema(), tables[1].getSchema() };
+		boolean[][] projections = new boolean[2][];
+		for (int side = 0; side < 2; side++)
+			projections[side] = new boolean[Math.max(schemas[side].getColumnCount() - 1, 0)];
+
+		String[] keys = on.split("=");
+		if (keys.length != 2)
+			throw new Exception("Expected ON <column> = <column> after JOIN.");
+		int[] first = resolve(keys[0], names, schemas);
+		int[] second = resolve(keys[1], names, schemas);
+		if (first[0] == second[0])
+			throw new Exception("The ON condition should compare a column of each table.");
+		int[] keyColumns = new int[2];
+		keyColumns[first[0]] = first[1];
+		keyColumns[second[0]] = second[1];
+
+		// the select list as {side, column} pairs
+		List<int[]> items = new ArrayList<>();
+		StringBuffer colNames = new StringBuffer();
+		if (columnNames.length == 1 && columnNames[0].trim().equals("*")) {
+			for (int side = 0; side < 2; side++) {
+				int column = 0;
+				for (String name : schemas[side].getColumnNames().values()) {
+					items.add(new int[] { side, column++ });
+					colNames.append(names[side] + "." + name + " | ");
+				}
+			}
+		} else {
+			for (String col : columnNames) {
+				if (Aggregate.isAggregate(col))
+					throw new Exception("Aggregate functions can not be used with JOIN.");
+				items.add(resolve(col, names, schemas));
+				colNames.append(col.trim() + " | ");
+			}
+		}
+		for (int[] item : items)
+			if (item[1] > 0)
+				projections[item[0]][item[1] - 1] = true;
+		for (int side = 0; side < 2; side++)
+			if (keyColumns[side] > 0)
+				projections[side][keyColumns[side] - 1] = true;
+
+		// the condition goes to the scan of the table whose columns it uses
+		String[][] conditions = { new String[0], new String[0] };
+		if (condition.length > 0) {
+			int side = -1;
+			String[] tokens = condition.clone();
+			for (int i = 0; i < tokens.length; i++)
+				for (int s = 0; s < 2; s++)
+					if (tokens[i].startsWith(names[s] + ".")) {
+						if (side != -1 && side != s)
+							throw new Exception("A condition can only use the columns of one of the joined tables.");
+						side = s;
+						tokens[i] = tokens[i].substring(names[s].length() + 1);
+					}
+			if (side == -1) {
+				// unqualified, the right table's scan reports it if neither has the columns
+				side = 0;
+				try {
+					Predicate.compile(tokens, schemas[0]);
+				} catch (Exception e) {
+					side = 1;
+				}
+			}
+			conditions[side] = tokens;
+		}
+
+		long[] count = new long[2];
+		try (HashJoin join = new HashJoin(schemas[0], keyColumns[0], projections[0], schemas[1], keyColumns[1],
+				projections[1], DavisBasePrompt.joinRecords, new File("data"))) {
+			System.out.println(colNames.toString());
+			try (RecordCursor leftCursor = tables[0].openCursor(conditions[0], projections[0]);
+					RecordCursor rightCursor = tables[1].openCursor(conditions[1], projections[1])) {
+				join.join(leftCursor, tables[0].totalNoRecords(), rightCursor, tables[1].totalNoRecords(),
+						(leftRecord, rightRecord) -> {
+							// rows before the offset are counted in count[1]
+							if (count[1] < offset) {
+								count[1]++;
+								return true;
+							}
+							RecordCell[] records = { leftRecord, rightRecord };
+							StringBuffer sb = new StringBuffer();
+							for (int[] item : items) {
+								RecordCell record = records[item[0]];
+								if (item[1] == 0)
+									sb.append(record.getRowId() + " | ");
+								else
+									sb.append(record.getPayload().getString(item[1] - 1) + " | ");
+							}
+							System.out.println(sb.toString());
+							return ++count[0] != limit;
+						});
+			}
+		}
+		System.out.println("\nFound total of " + count[0] + " records.");
+	}
+
+	/**
+	 * Finds the {table, column} of a column reference of a join, 0 for the
+	 * left table and 1 for the right one.
+	 */
+	private static int[] resolve(String reference, String[] names, TableSchema[] schemas) throws Exception {
+		reference = reference.trim();
+		for (int side = 0; side < 2; side++)
+			if (reference.startsWith(names[side] + ".")) {
+				int column = schemas[side].getColumnIndex(reference.substring(names[side].length() + 1));
+				if (column == -1)
+					throw new Exception("Could not find column '" + reference + "'");
+				return new int[] { side, column };
+			}
+		int left = schemas[0].getColumnIndex(reference);
+		int right = schemas[1].getColumnIndex(reference);
+		if (left != -1 && right != -1)
+			throw new Exception("Column '" + reference + "' is in both tables, write it as table." + reference);
+		if (left == -1 && right == -1)
+			throw new Exception("Could not find column '" + reference + "'");
+		return left != -1 ? new int[] { 0, left } : new int[] { 1, right };
+	}
+
+	/**
+	 * Flags the payload columns the select list needs decoded, the first column
+	 * is the rowid.
+	 */
+	private static boolean[] projection(Table table, String[] columnNames) {
+		List<String> colmns = new ArrayList<>(table.getColumnNames().values());
+		boolean all = columnNames.length == 1 && columnNames[0].trim().equalsIgnoreCase("*");
+		boolean[] projection = new boolean[Math.max(colmns.size() - 1, 0)];
+		for (int i = 1; i < colmns.size(); i++)
+			projection[i - 1] = all || arrayContains(columnNames, colmns.get(i));
+		return projection;
+	}
+
 	public static boolean arrayContains(String[] array, String item) {
 		for (String ele : array)
 			if (item.trim().equalsIgnoreCase(ele.trim()))
@@ -137,57 +619,76 @@ public class Operations {
 	}
 
 	public static void update(String path, String tableName, String[] data, String[] condition) throws Exception {
-		Table table = new Table();
-		table.initialize(path, tableName);
-		Map<Integer, RecordCell> filteredData = table.selectRecords(new String[] { "*" }, condition);
-		Map<Integer, String> columns = table.getColumnNames();
-		int total = filteredData.size();
-
-		for (Map.Entry<Integer, RecordCell> entry : filteredData.entrySet()) {
-			RecordCell rec = entry.getValue();
-			PayLoad payLoad = rec.getPayload();
-			String[] colNames = columns.values().toArray(new String[0]);
-			int rowid = rec.getRowId();
-
-			String[] payLoadData = new String[payLoad.getData().length + 1];
-			payLoadData[0] = String.valueOf(rowid);
-			for (int i = 0; i < payLoad.getData().length; i++)
-				payLoadData[i + 1] = payLoad.getData()[i];
-
-			int index = findIndx(colNames, data[0]);
-			payLoadData[index] = data[2];
-			table.updateToLeaf(colNames, payLoadData, rec.getPageNumber(), rec.getLocation(), rowid);
+		Table table = TableManager.acquire(path, tableName);
+		try {
+			Transaction.lockForWrite(table);
+			update(table, data, condition);
+		} finally {
+			TableManager.release(table);
 		}
-		System.out.println("Total of " + total + " records were updated.");
 	}
 
-	private static int findIndx(String[] columns, String column) {
-		for (int i = 0; i < columns.length; i++) {
-			if (column.trim().equalsIgnoreCase(columns[i].trim()))
-				return i;
+	private static void update(Table table, String[] data, String[] condition) throws Exception {
+		TableSchema schema = table.getSchema();
+		int index = schema.getColumnIndex(data[0]);
+		if (index == -1)
+			throw new Exception("Could not find column '" + data[0] + "'");
+		if (index == 0)
+			throw new Exception("Can not update the rowid.");
+		int total = 0;
+
+		try (RecordCursor cursor = table.openCursor(condition)) {
+			for (RecordCell rec = cursor.next(); rec != null; rec = cursor.next()) {
+				PayLoad payLoad = rec.getPayload();
+				payLoad.setValue(index - 1, schema.getType(index), data[2]);
+				table.updateToLeaf(rec.getRowId(), payLoad);
+				total++;
+			}
 		}
-		return -1;
+		table.flush();
+		System.out.println("Total of " + total + " records were updated.");
 	}
 
 	public static void delete(String path, String tableName, String[] condition) throws Exception {
-		Table table = new Table();
-		table.initialize(path, tableName);
-		Map<Integer, RecordCell> filteredData = table.selectRecords(new String[] { "*" }, condition);
-		int total = filteredData.size();
-
-		for (Map.Entry<Integer, RecordCell> entry : filteredData.entrySet()) {
-			RecordCell rec = entry.getValue();
-			table.deleteRec(rec.getPageNumber(), rec.getLocation());
+		Table table = TableManager.acquire(path, tableName);
+		int total = 0;
+		try {
+			Transaction.lockForWrite(table);
+			try (RecordCursor cursor = table.openCursor(condition, new boolean[0])) {
+				for (RecordCell rec = cursor.next(); rec != null; rec = cursor.next()) {
+					table.deleteRec(rec.getRowId());
+					total++;
+				}
+			}
+			table.flush();
+		} finally {
+			TableManager.release(table);
 		}
 		System.out.println("Total of " + total + " records were deleted.");
 	}
 
 	public static void dropTable(String path, String tableName) throws Exception {
+		Set<String> indexNames = Catalog.getIndexes(tableName).keySet();
 		delete("data/catalog", "davisbase_columns", new String[] { "table_name", "=", tableName });
 		delete("data/catalog", "davisbase_tables", new String[] { "table_name", "=", tableName });
+		delete("data/catalog", "davisbase_indexes", new String[] { "table_name", "=", tableName });
+		Catalog.invalidate(tableName);
 
+		TableManager.close(path, tableName);
+		for (String indexName : indexNames) {
+			File indexFile = new File(path + "/" + indexName + ".ndx");
+			BufferPool.discard(indexFile.getPath());
+			indexFile.delete();
+		}
+		File zoneFile = new File(ZoneMap.fileName(path + "/" + tableName + ".tbl"));
+		BufferPool.discard(zoneFile.getPath());
+		zoneFile.delete();
 		File file = new File(path + "/" + tableName + ".tbl");
-		if (!file.delete())
+		BufferPool.discard(file.getPath());
+		boolean deleted = file.delete();
+		// the log may still hold pages of the deleted files, a new table of the same name must not get them
+		BufferPool.checkpoint();
+		if (!deleted)
 			System.out.println("The table is successfully removed from Meta, but could not be delete from FileSystem.");
 		else
 			System.out.println("Dropped table " + tableName + " successfully.");
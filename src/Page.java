@@ -0,0 +1,226 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory copy of one page of a table file. All offsets are relative to the
+ * beginning of the page. Writes only mark the page dirty, it is the
+ * BufferPool that writes it back to the file.
+ *
+ * The latch of the page guards its content between threads: readers hold it
+ * shared, a thread changing the page holds it exclusively. It is only held
+ * while the page is pinned.
+ */
+public class Page {
+
+	private final String fileName;
+	private final int pageNumber;
+	private final ByteBuffer buffer;
+	private int pinCount = 0;
+	private boolean dirty = false;
+	private boolean unlogged = false;
+	/* Content of the page before its first change since the last commit. */
+	private byte[] before;
+
+	/* Writes to any page, tells whether a statement changed anything. */
+	private static final AtomicLong changeCount = new AtomicLong();
+	/* changeCount at the last change of the page, or when it was read. */
+	private volatile long version = changeCount.get();
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+	private boolean referenced = false;
+
+	public Page(String fileName, int pageNumber, ByteBuffer buffer) {
+		this.fileName = fileName;
+		this.pageNumber = pageNumber;
+		this.buffer = buffer;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public int getPageNumber() {
+		return pageNumber;
+	}
+
+	public int getSize() {
+		return buffer.capacity();
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public byte readByte(int offset) {
+		return buffer.get(offset);
+	}
+
+	public short readShort(int offset) {
+		return buffer.getShort(offset);
+	}
+
+	public int readUnsignedShort(int offset) {
+		return buffer.getShort(offset) & 0xFFFF;
+	}
+
+	public int readInt(int offset) {
+		return buffer.getInt(offset);
+	}
+
+	public long readLong(int offset) {
+		return buffer.getLong(offset);
+	}
+
+	public float readFloat(int offset) {
+		return buffer.getFloat(offset);
+	}
+
+	public double readDouble(int offset) {
+		return buffer.getDouble(offset);
+	}
+
+	public void read(int offset, byte[] bytes) {
+		buffer.get(offset, bytes);
+	}
+
+	public void writeByte(int offset, int value) {
+		change();
+		buffer.put(offset, (byte) value);
+	}
+
+	public void writeShort(int offset, int value) {
+		change();
+		buffer.putShort(offset, (short) value);
+	}
+
+	public void writeInt(int offset, int value) {
+		change();
+		buffer.putInt(offset, value);
+	}
+
+	public void writeLong(int offset, long value) {
+		change();
+		buffer.putLong(offset, value);
+	}
+
+	public void writeFloat(int offset, float value) {
+		change();
+		buffer.putFloat(offset, value);
+	}
+
+	public void writeDouble(int offset, double value) {
+		change();
+		buffer.putDouble(offset, value);
+	}
+
+	public void write(int offset, byte[] bytes) {
+		change();
+		buffer.put(offset, bytes);
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public void markDirty() {
+		dirty = true;
+	}
+
+	public void markClean() {
+		dirty = false;
+	}
+
+	/**
+	 * Whether the page changed since its image was last written to the
+	 * WriteAheadLog.
+	 */
+	public boolean isUnlogged() {
+		return unlogged;
+	}
+
+	public void markLogged() {
+		unlogged = false;
+		before = null;
+	}
+
+	/**
+	 * Marks the page changed, on the first change since the last commit its
+	 * content is saved for rollback.
+	 */
+	private void change() {
+		if (!unlogged) {
+			before = new byte[buffer.capacity()];
+			buffer.get(0, before);
+		}
+		dirty = true;
+		unlogged = true;
+		version = changeCount.incrementAndGet();
+	}
+
+	public static long getChangeCount() {
+		return changeCount.get();
+	}
+
+	/**
+	 * Changes whenever the content of the page does, a reader that kept
+	 * offsets into the page compares it to tell whether they are still valid.
+	 * A page read again after eviction gets a new version.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void latchShared() {
+		latch.readLock().lock();
+	}
+
+	public void unlatchShared() {
+		latch.readLock().unlock();
+	}
+
+	public void latchExclusive() {
+		latch.writeLock().lock();
+	}
+
+	public void unlatchExclusive() {
+		latch.writeLock().unlock();
+	}
+
+	/**
+	 * Undoes the changes made since the last commit. The page stays dirty, its
+	 * restored content may not be in the file yet.
+	 */
+	public void rollback() {
+		latchExclusive();
+		try {
+			if (before != null)
+				buffer.put(0, before);
+			version = changeCount.incrementAndGet();
+			markLogged();
+		} finally {
+			unlatchExclusive();
+		}
+	}
+
+	public boolean isPinned() {
+		return pinCount > 0;
+	}
+
+	public void pin() {
+		pinCount++;
+		referenced = true;
+	}
+
+	public void unpin() {
+		if (pinCount > 0)
+			pinCount--;
+	}
+
+	public boolean isReferenced() {
+		return referenced;
+	}
+
+	public void setReferenced(boolean referenced) {
+		this.referenced = referenced;
+	}
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+
+/**
+ * Page level access to a table file. Page N starts at byte N * page size of
+ * the file. Every pin must be matched by an unpin.
+ */
+public interface PageStore {
+
+	Page pin(int pageNumber) throws IOException;
+
+	void unpin(Page page);
+
+	int getPageSize();
+
+	int getPageCount() throws IOException;
+
+	/**
+	 * Appends a zero filled page to the file and returns its page number.
+	 */
+	int allocatePage() throws IOException;
+
+	void truncate() throws IOException;
+
+	/**
+	 * Commits the changes made to the pages, they survive a crash once it
+	 * returns.
+	 */
+	void flush() throws IOException;
+
+	void close() throws IOException;
+
+	/**
+	 * Opens the file with the I/O mode chosen at startup.
+	 */
+	static PageStore open(String fileName, int pageSize) throws IOException {
+		if (DavisBasePrompt.ioMode.equalsIgnoreCase("mmap"))
+			return new MappedPageStore(fileName, pageSize);
+		return new BufferedPageStore(fileName, pageSize);
+	}
+}
@@ -1,3 +1,9 @@
+/**
+ * Column values of a record, without the rowid. Values are kept in binary
+ * form: integers, dates and datetimes as long, real and double as double and
+ * text as String. The type code of a column tells which accessor holds its
+ * value, strings for display are only made by getString.
+ */
 public class PayLoad {
 
 	private byte noColumns;
@@ -16,18 +22,85 @@ public class PayLoad {
 		return dataTypes;
 	}
 
+	/**
+	 * Sets the type codes of the columns and clears their values.
+	 */
 	public void setDataTypes(byte[] dataType) {
 		this.dataTypes = dataType;
+		this.longValues = new long[dataType.length];
+		this.doubleValues = new double[dataType.length];
+		this.textValues = new String[dataType.length];
 	}
 
-	private String[] dataArray;
+	private long[] longValues;
+	private double[] doubleValues;
+	private String[] textValues;
 
-	public String[] getData() {
-		return dataArray;
+	public int getTypeCode(int column) {
+		return dataTypes[column] & 0xFF;
 	}
 
-	public void setData(String[] data) {
-		this.dataArray = data;
+	public boolean isNull(int column) {
+		return getTypeCode(column) <= 0x03;
+	}
+
+	public long getLong(int column) {
+		return longValues[column];
+	}
+
+	public double getDouble(int column) {
+		return doubleValues[column];
+	}
+
+	public String getText(int column) {
+		return textValues[column];
+	}
+
+	public void setLong(int column, long value) {
+		longValues[column] = value;
+	}
+
+	public void setDouble(int column, double value) {
+		doubleValues[column] = value;
+	}
+
+	public void setText(int column, String value) {
+		textValues[column] = value;
+	}
+
+	/**
+	 * Sets the column to the value of a literal of the given type, "null" sets
+	 * it to NULL. The type code of the column is set to match.
+	 */
+	public void setValue(int column, DataTypes type, String literal) {
+		if (literal == null || literal.equalsIgnoreCase("null")) {
+			// a NULL text is stored as empty text
+			textValues[column] = type == DataTypes.TEXT ? "" : null;
+			dataTypes[column] = (byte) type.getNullHeader();
+		} else if (type == DataTypes.TEXT) {
+			textValues[column] = literal;
+			dataTypes[column] = (byte) (type.getHeader() + literal.length());
+		} else {
+			if (type.isDouble())
+				doubleValues[column] = Double.parseDouble(literal);
+			else
+				longValues[column] = type.parseLong(literal);
+			dataTypes[column] = (byte) type.getHeader();
+		}
+	}
+
+	/**
+	 * Formats the value of the column for display.
+	 */
+	public String getString(int column) {
+		if (isNull(column))
+			return "null";
+		DataTypes type = DataTypes.fromHeader(getTypeCode(column));
+		if (type == DataTypes.TEXT)
+			return textValues[column];
+		if (type.isDouble())
+			return type.formatDouble(doubleValues[column]);
+		return type.formatLong(longValues[column]);
 	}
 
 	private int payLoadSize;
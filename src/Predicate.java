@@ -0,0 +1,742 @@
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * WHERE condition compiled against the schema of one table. Column names are
+ * resolved and literals parsed to the column type once per statement, test
+ * then evaluates the condition straight on the record bytes of a page without
+ * allocating.
+ *
+ * Supported: col op value (=, <>, !=, <, <=, >, >=), col [NOT] BETWEEN a AND
+ * b, col [NOT] IN (a, b, ...), AND, OR, NOT and parentheses. A comparison
+ * with a NULL value is false.
+ */
+public abstract class Predicate {
+
+	/* Column index of the rowid, payload columns are numbered from 0. */
+	static final int ROWID = -1;
+
+	private static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+	public abstract boolean test(Page p, int recLoc) throws Exception;
+
+	/**
+	 * Returns the {low, high} range outside of which no rowid can match, or null
+	 * if any rowid may match.
+	 */
+	public long[] getRowIdRange() {
+		return null;
+	}
+
+	/**
+	 * Returns the rowids that an index of the table finds for the condition,
+	 * or null if no index can answer it. The records still have to be tested.
+	 */
+	RowIdSource lookup(Table table) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Estimated fraction of the records that lookup finds, 1 if no index can
+	 * answer the condition.
+	 */
+	double selectivity(Table table) throws IOException {
+		return 1;
+	}
+
+	/**
+	 * Whether the zone of a leaf page can rule out every record on it.
+	 */
+	boolean usesZones() {
+		return false;
+	}
+
+	/**
+	 * Returns false if no record summarized by the zone can match.
+	 */
+	boolean mayMatch(ZoneMap.Zone zone) {
+		return true;
+	}
+
+	/**
+	 * Compiles the condition tokens of a statement, returns null for an empty
+	 * condition which matches every record.
+	 */
+	public static Predicate compile(String[] tokens, TableSchema schema) throws Exception {
+		if (tokens.length == 0)
+			return null;
+		Parser parser = new Parser(String.join(" ", tokens), schema);
+		Predicate predicate = parser.parseOr();
+		if (parser.peek() != null)
+			throw new Exception("Invalid condition near '" + parser.peek() + "'.");
+		return predicate;
+	}
+
+	private static boolean holds(int op, int comparison) {
+		switch (op) {
+		case EQ:
+			return comparison == 0;
+		case NE:
+			return comparison != 0;
+		case LT:
+			return comparison < 0;
+		case LE:
+			return comparison <= 0;
+		case GT:
+			return comparison > 0;
+		default:
+			return comparison >= 0;
+		}
+	}
+
+	/**
+	 * Literal parsed to the type of the column it is compared with.
+	 */
+	static final class Literal {
+		final long longValue;
+		final double doubleValue;
+		final byte[] text;
+
+		Literal(String token, int column, DataTypes type) throws Exception {
+			long l = 0;
+			double d = 0;
+			byte[] t = null;
+			try {
+				if (column == ROWID) {
+					l = Long.parseLong(token);
+				} else if (type == DataTypes.TEXT) {
+					t = new byte[token.length()];
+					for (int i = 0; i < t.length; i++)
+						t[i] = (byte) token.charAt(i);
+				} else if (type == DataTypes.REAL) {
+					// compare at float precision, 1.1 should match a stored 1.1f
+					d = (float) Double.parseDouble(token);
+				} else if (type == DataTypes.DOUBLE) {
+					d = Double.parseDouble(token);
+				} else {
+					l = type.parseLong(token);
+				}
+			} catch (RuntimeException e) {
+				throw new Exception("'" + token + "' is not a valid " + type.name().toLowerCase() + " value.");
+			}
+			longValue = l;
+			doubleValue = d;
+			text = t;
+		}
+
+		private Literal(long longValue, double doubleValue, byte[] text) {
+			this.longValue = longValue;
+			this.doubleValue = doubleValue;
+			this.text = text;
+		}
+
+		static Literal ofLong(long value) {
+			return new Literal(value, 0, null);
+		}
+
+		static Literal ofDouble(double value) {
+			return new Literal(0, value, null);
+		}
+
+		static Literal ofText(String value) {
+			byte[] text = new byte[value.length()];
+			for (int i = 0; i < text.length; i++)
+				text[i] = (byte) value.charAt(i);
+			return new Literal(0, 0, text);
+		}
+
+		/**
+		 * Compares the column value of the record at recLoc with the literal,
+		 * the value must not be NULL.
+		 */
+		int compareTo(Page p, int recLoc, int column) throws Exception {
+			if (column == ROWID)
+				return Long.compare(p.readInt(recLoc + 2), longValue);
+			int code = Table.typeCode(p, recLoc, column);
+			int pos = Table.valueOffset(p, recLoc, column);
+			if (code >= 0x0C)
+				return compareText(p, pos, code - 0x0C);
+			if (code == 0x08 || code == 0x09)
+				return Double.compare(Table.readDoubleValue(p, pos, code), doubleValue);
+			return Long.compare(Table.readLongValue(p, pos, code), longValue);
+		}
+
+		private int compareText(Page p, int pos, int length) {
+			int n = Math.min(length, text.length);
+			for (int i = 0; i < n; i++) {
+				int a = Character.toLowerCase(p.readByte(pos + i) & 0xFF);
+				int b = Character.toLowerCase(text[i] & 0xFF);
+				if (a != b)
+					return a - b;
+			}
+			return Integer.compare(length, text.length);
+		}
+	}
+
+	private static boolean isNull(Page p, int recLoc, int column) {
+		return column != ROWID && Table.typeCode(p, recLoc, column) <= 0x03;
+	}
+
+	/**
+	 * Whether some value in the [min, max] range of the zone may lie between
+	 * the literals.
+	 */
+	private static boolean overlaps(ZoneMap.Zone zone, int column, Literal low, Literal high) {
+		return zone.compareMax(column, low) >= 0 && zone.compareMin(column, high) <= 0;
+	}
+
+	static final class Comparison extends Predicate {
+		final int column;
+		final int op;
+		final Literal value;
+
+		Comparison(int column, int op, Literal value) {
+			this.column = column;
+			this.op = op;
+			this.value = value;
+		}
+
+		@Override
+		public boolean test(Page p, int recLoc) throws Exception {
+			return !isNull(p, recLoc, column) && holds(op, value.compareTo(p, recLoc, column));
+		}
+
+		@Override
+		RowIdSource lookup(Table table) throws IOException {
+			Index index = table.getIndex(column);
+			if (index == null)
+				return null;
+			switch (op) {
+			case EQ:
+				return index.lookup(value);
+			case LT:
+				return RowIdSource.of(index.search(null, true, value, false));
+			case LE:
+				return RowIdSource.of(index.search(null, true, value, true));
+			case GT:
+				return RowIdSource.of(index.search(value, false, null, true));
+			case GE:
+				return RowIdSource.of(index.search(value, true, null, true));
+			default:
+				return null;
+			}
+		}
+
+		@Override
+		double selectivity(Table table) throws IOException {
+			Index index = table.getIndex(column);
+			if (index == null)
+				return 1;
+			switch (op) {
+			case EQ:
+				return index.estimate(value, true, value, true);
+			case LT:
+				return index.estimate(null, true, value, false);
+			case LE:
+				return index.estimate(null, true, value, true);
+			case GT:
+				return index.estimate(value, false, null, true);
+			case GE:
+				return index.estimate(value, true, null, true);
+			default:
+				return 1;
+			}
+		}
+
+		@Override
+		boolean usesZones() {
+			return column != ROWID && value.text == null;
+		}
+
+		@Override
+		boolean mayMatch(ZoneMap.Zone zone) {
+			if (!zone.tracks(column))
+				return true;
+			if (zone.allNull(column))
+				return false;
+			switch (op) {
+			case EQ:
+				return overlaps(zone, column, value, value);
+			case NE:
+				return zone.compareMin(column, value) != 0 || zone.compareMax(column, value) != 0;
+			case LT:
+				return zone.compareMin(column, value) < 0;
+			case LE:
+				return zone.compareMin(column, value) <= 0;
+			case GT:
+				return zone.compareMax(column, value) > 0;
+			default:
+				return zone.compareMax(column, value) >= 0;
+			}
+		}
+
+		@Override
+		public long[] getRowIdRange() {
+			if (column != ROWID)
+				return null;
+			long v = value.longValue;
+			switch (op) {
+			case EQ:
+				return new long[] { v, v };
+			case LT:
+				return new long[] { Long.MIN_VALUE, v - 1 };
+			case LE:
+				return new long[] { Long.MIN_VALUE, v };
+			case GT:
+				return new long[] { v + 1, Long.MAX_VALUE };
+			case GE:
+				return new long[] { v, Long.MAX_VALUE };
+			default:
+				return null;
+			}
+		}
+	}
+
+	static final class Between extends Predicate {
+		final int column;
+		final Literal low;
+		final Literal high;
+		final boolean negated;
+
+		Between(int column, Literal low, Literal high, boolean negated) {
+			this.column = column;
+			this.low = low;
+			this.high = high;
+			this.negated = negated;
+		}
+
+		@Override
+		public boolean test(Page p, int recLoc) throws Exception {
+			if (isNull(p, recLoc, column))
+				return false;
+			boolean between = low.compareTo(p, recLoc, column) >= 0 && high.compareTo(p, recLoc, column) <= 0;
+			return between != negated;
+		}
+
+		@Override
+		RowIdSource lookup(Table table) throws IOException {
+			Index index = table.getIndex(column);
+			if (index == null || negated)
+				return null;
+			return RowIdSource.of(index.search(low, true, high, true));
+		}
+
+		@Override
+		double selectivity(Table table) throws IOException {
+			Index index = table.getIndex(column);
+			if (index == null || negated)
+				return 1;
+			return index.estimate(low, true, high, true);
+		}
+
+		@Override
+		boolean usesZones() {
+			return column != ROWID && low.text == null;
+		}
+
+		@Override
+		boolean mayMatch(ZoneMap.Zone zone) {
+			if (!zone.tracks(column))
+				return true;
+			if (zone.allNull(column))
+				return false;
+			if (negated)
+				return zone.compareMin(column, low) < 0 || zone.compareMax(column, high) > 0;
+			return overlaps(zone, column, low, high);
+		}
+
+		@Override
+		public long[] getRowIdRange() {
+			if (column != ROWID || negated)
+				return null;
+			return new long[] { low.longValue, high.longValue };
+		}
+	}
+
+	static final class In extends Predicate {
+		final int column;
+		final Literal[] values;
+		final boolean negated;
+
+		In(int column, Literal[] values, boolean negated) {
+			this.column = column;
+			this.values = values;
+			this.negated = negated;
+		}
+
+		@Override
+		public boolean test(Page p, int recLoc) throws Exception {
+			if (isNull(p, recLoc, column))
+				return false;
+			for (Literal value : values)
+				if (value.compareTo(p, recLoc, column) == 0)
+					return !negated;
+			return negated;
+		}
+
+		@Override
+		RowIdSource lookup(Table table) throws IOException {
+			Index index = table.getIndex(column);
+			if (index == null || negated)
+				return null;
+			List<RowIdSource> rowids = new ArrayList<>();
+			for (Literal value : values)
+				rowids.add(index.lookup(value));
+			return RowIdSource.union(rowids);
+		}
+
+		@Override
+		double selectivity(Table table) throws IOException {
+			Index index = table.getIndex(column);
+			if (index == null || negated)
+				return 1;
+			double selectivity = 0;
+			for (Literal value : values)
+				selectivity += index.estimate(value, true, value, true);
+			return Math.min(1, selectivity);
+		}
+
+		@Override
+		boolean usesZones() {
+			return column != ROWID && values[0].text == null;
+		}
+
+		@Override
+		boolean mayMatch(ZoneMap.Zone zone) {
+			if (!zone.tracks(column))
+				return true;
+			if (zone.allNull(column))
+				return false;
+			if (negated)
+				return true;
+			for (Literal value : values)
+				if (overlaps(zone, column, value, value))
+					return true;
+			return false;
+		}
+
+		@Override
+		public long[] getRowIdRange() {
+			if (column != ROWID || negated)
+				return null;
+			long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+			for (Literal value : values) {
+				range[0] = Math.min(range[0], value.longValue);
+				range[1] = Math.max(range[1], value.longValue);
+			}
+			return range;
+		}
+	}
+
+	static final class Not extends Predicate {
+		final Predicate operand;
+
+		Not(Predicate operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public boolean test(Page p, int recLoc) throws Exception {
+			return !operand.test(p, recLoc);
+		}
+	}
+
+	static final class And extends Predicate {
+		final Predicate[] operands;
+
+		And(Predicate[] operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public boolean test(Page p, int recLoc) throws Exception {
+			for (Predicate operand : operands)
+				if (!operand.test(p, recLoc))
+					return false;
+			return true;
+		}
+
+		/**
+		 * The lookup of the operand that finds the fewest records.
+		 */
+		@Override
+		RowIdSource lookup(Table table) throws IOException {
+			Predicate best = null;
+			double least = 1;
+			for (Predicate operand : operands) {
+				double selectivity = operand.selectivity(table);
+				if (best == null || selectivity < least) {
+					best = operand;
+					least = selectivity;
+				}
+			}
+			return best.lookup(table);
+		}
+
+		@Override
+		double selectivity(Table table) throws IOException {
+			double least = 1;
+			for (Predicate operand : operands)
+				least = Math.min(least, operand.selectivity(table));
+			return least;
+		}
+
+		@Override
+		boolean usesZones() {
+			for (Predicate operand : operands)
+				if (operand.usesZones())
+					return true;
+			return false;
+		}
+
+		@Override
+		boolean mayMatch(ZoneMap.Zone zone) {
+			for (Predicate operand : operands)
+				if (!operand.mayMatch(zone))
+					return false;
+			return true;
+		}
+
+		@Override
+		public long[] getRowIdRange() {
+			long[] range = null;
+			for (Predicate operand : operands) {
+				long[] r = operand.getRowIdRange();
+				if (r == null)
+					continue;
+				if (range == null)
+					range = r.clone();
+				range[0] = Math.max(range[0], r[0]);
+				range[1] = Math.min(range[1], r[1]);
+			}
+			return range;
+		}
+	}
+
+	static final class Or extends Predicate {
+		final Predicate[] operands;
+
+		Or(Predicate[] operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public boolean test(Page p, int recLoc) throws Exception {
+			for (Predicate operand : operands)
+				if (operand.test(p, recLoc))
+					return true;
+			return false;
+		}
+
+		@Override
+		RowIdSource lookup(Table table) throws IOException {
+			List<RowIdSource> rowids = new ArrayList<>();
+			for (Predicate operand : operands) {
+				RowIdSource found = operand.lookup(table);
+				if (found == null)
+					return null;
+				rowids.add(found);
+			}
+			return RowIdSource.union(rowids);
+		}
+
+		@Override
+		double selectivity(Table table) throws IOException {
+			double selectivity = 0;
+			for (Predicate operand : operands)
+				selectivity += operand.selectivity(table);
+			return Math.min(1, selectivity);
+		}
+
+		@Override
+		boolean usesZones() {
+			for (Predicate operand : operands)
+				if (!operand.usesZones())
+					return false;
+			return true;
+		}
+
+		@Override
+		boolean mayMatch(ZoneMap.Zone zone) {
+			for (Predicate operand : operands)
+				if (operand.mayMatch(zone))
+					return true;
+			return false;
+		}
+
+		@Override
+		public long[] getRowIdRange() {
+			long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+			for (Predicate operand : operands) {
+				long[] r = operand.getRowIdRange();
+				if (r == null)
+					return null;
+				range[0] = Math.min(range[0], r[0]);
+				range[1] = Math.max(range[1], r[1]);
+			}
+			return range;
+		}
+	}
+
+	/**
+	 * Recursive descent parser, NOT binds tighter than AND which binds tighter
+	 * than OR.
+	 */
+	private static final class Parser {
+		private final List<String> tokens = new ArrayList<>();
+		private final TableSchema schema;
+		private int next = 0;
+
+		Parser(String condition, TableSchema schema) {
+			this.schema = schema;
+			int i = 0;
+			while (i < condition.length()) {
+				char c = condition.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '\'' || c == '"') {
+					int end = condition.indexOf(c, i + 1);
+					if (end == -1)
+						end = condition.length();
+					// keep the opening quote to tell a string from a keyword
+					tokens.add(condition.substring(i, end));
+					i = end + 1;
+				} else if ("<>!=".indexOf(c) != -1) {
+					int end = i + 1;
+					if (end < condition.length() && "<>=".indexOf(condition.charAt(end)) != -1)
+						end++;
+					tokens.add(condition.substring(i, end));
+					i = end;
+				} else if ("(),".indexOf(c) != -1) {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else {
+					int end = i;
+					while (end < condition.length() && !Character.isWhitespace(condition.charAt(end))
+							&& "<>!=(),'\"".indexOf(condition.charAt(end)) == -1)
+						end++;
+					tokens.add(condition.substring(i, end));
+					i = end;
+				}
+			}
+		}
+
+		String peek() {
+			return next < tokens.size() ? tokens.get(next) : null;
+		}
+
+		private boolean accept(String keyword) {
+			if (keyword.equalsIgnoreCase(peek())) {
+				next++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String keyword) throws Exception {
+			if (!accept(keyword))
+				throw new Exception("Expected '" + keyword + "' in condition"
+						+ (peek() == null ? "." : " near '" + peek() + "'."));
+		}
+
+		private String nextToken() throws Exception {
+			String token = peek();
+			if (token == null)
+				throw new Exception("Incomplete condition.");
+			next++;
+			return token;
+		}
+
+		Predicate parseOr() throws Exception {
+			List<Predicate> operands = new ArrayList<>();
+			operands.add(parseAnd());
+			while (accept("or"))
+				operands.add(parseAnd());
+			return operands.size() == 1 ? operands.get(0) : new Or(operands.toArray(new Predicate[0]));
+		}
+
+		private Predicate parseAnd() throws Exception {
+			List<Predicate> operands = new ArrayList<>();
+			operands.add(parseNot());
+			while (accept("and"))
+				operands.add(parseNot());
+			return operands.size() == 1 ? operands.get(0) : new And(operands.toArray(new Predicate[0]));
+		}
+
+		private Predicate parseNot() throws Exception {
+			if (accept("not"))
+				return new Not(parseNot());
+			if (accept("(")) {
+				Predicate predicate = parseOr();
+				expect(")");
+				return predicate;
+			}
+			return parseCondition();
+		}
+
+		private Predicate parseCondition() throws Exception {
+			String columnName = nextToken();
+			int index = schema.getColumnIndex(columnName);
+			if (index == -1)
+				throw new Exception("Could not find column '" + columnName + "'");
+			int column = index - 1;
+			DataTypes type = schema.getType(index);
+
+			boolean negated = accept("not");
+			if (accept("between")) {
+				Literal low = parseLiteral(column, type);
+				expect("and");
+				return new Between(column, low, parseLiteral(column, type), negated);
+			}
+			if (accept("in")) {
+				expect("(");
+				List<Literal> values = new ArrayList<>();
+				do {
+					values.add(parseLiteral(column, type));
+				} while (accept(","));
+				expect(")");
+				return new In(column, values.toArray(new Literal[0]), negated);
+			}
+			if (negated)
+				throw new Exception("Expected BETWEEN or IN after NOT in condition.");
+
+			String operator = nextToken();
+			int op;
+			switch (operator) {
+			case "=":
+				op = EQ;
+				break;
+			case "<>":
+			case "!=":
+				op = NE;
+				break;
+			case "<":
+				op = LT;
+				break;
+			case "<=":
+				op = LE;
+				break;
+			case ">":
+				op = GT;
+				break;
+			case ">=":
+				op = GE;
+				break;
+			default:
+				throw new Exception("Unknown comparision operation '" + operator + "'.");
+			}
+			return new Comparison(column, op, parseLiteral(column, type));
+		}
+
+		private Literal parseLiteral(int column, DataTypes type) throws Exception {
+			String token = nextToken();
+			if (token.startsWith("'") || token.startsWith("\"")) {
+				token = token.substring(1);
+			} else if (type == DataTypes.DATETIME && peek() != null && peek().contains(":")) {
+				// an unquoted datetime is split at the space
+				token = token + " " + nextToken();
+			}
+			return new Literal(token, column, type);
+		}
+	}
+}
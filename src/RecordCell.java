@@ -1,12 +1,12 @@
 public class RecordCell {
 
-	private short location;
+	private int location;
 
-	public short getLocation() {
+	public int getLocation() {
 		return location;
 	}
 
-	public void setLocation(short location) {
+	public void setLocation(int location) {
 		this.location = location;
 	}
 
@@ -50,7 +50,7 @@ public class RecordCell {
 		this.payload = payload;
 	}
 
-	public RecordCell(short location, int page) {
+	public RecordCell(int location, int page) {
 		this.location = location;
 		pageNumber = page;
 	}
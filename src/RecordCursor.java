@@ -0,0 +1,291 @@
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Forward only cursor over the records of a table in rowid order. Records are
+ * read from the leaf chain one at a time and filtered by the predicate as they
+ * are read, so a scan keeps a single record in memory. The predicate is
+ * checked on the page and only the records that pass it are decoded, with the
+ * columns of the projection. When the predicate can use them, the zones of the
+ * leaves are checked first and a leaf that can not hold a match is skipped
+ * without reading its records.
+ *
+ * The table may be modified between calls to next, by the statement itself
+ * or by another thread. The cursor keeps the version of the leaf it reads
+ * and, when the leaf changed, finds its place again from the first rowid
+ * after the last record it has read. The leaf is only latched within a call.
+ *
+ * A cursor opened with the rowids an index found seeks each of them instead
+ * of following the leaf chain. They come in increasing order, so the leaf of
+ * the previous one is tried first.
+ *
+ * A cursor with a limit ends once it returned that many records, without
+ * reading further.
+ *
+ * A parallel cursor splits the rowids into ranges and scans each of them with
+ * a cursor of its own on the common ForkJoinPool. The records of a range are
+ * collected in memory and handed out range by range, so they still come in
+ * rowid order. Only as many ranges as the pool has threads are scanned ahead
+ * of the one being handed out, the next is started when one is taken. A
+ * parallel cursor must be closed, which stops the scans still running.
+ */
+public class RecordCursor implements RecordSource, Closeable {
+
+	private final Table table;
+	private final Predicate predicate;
+	private final boolean[] projection;
+	private final boolean useZones;
+	private final long high;
+
+	private long nextRowId;
+	private int page;
+	private long version = -1;
+	private int[] pointers;
+	private int index;
+	private boolean done = false;
+	private long limit = -1;
+	private long returned = 0;
+	private RowIdSource rowids;
+	/* Upper rowid of every range but the last, position is the next range to start. */
+	private long[] bounds;
+	private int position = 0;
+	/* Ranges started and not handed out yet, in rowid order. */
+	private ArrayDeque<ForkJoinTask<List<RecordCell>>> partitions;
+	private Iterator<RecordCell> partition;
+	private volatile boolean closed = false;
+
+	/* Ranges per thread of the pool, threads that finish early take the rest. */
+	private static final int RANGES_PER_THREAD = 4;
+
+	RecordCursor(Table table, long low, long high, Predicate predicate, boolean[] projection) {
+		this.table = table;
+		this.nextRowId = low;
+		this.high = high;
+		this.predicate = predicate;
+		this.projection = projection;
+		this.useZones = predicate != null && predicate.usesZones();
+		if (low > high)
+			done = true;
+	}
+
+	RecordCursor(Table table, RowIdSource rowids, Predicate predicate, boolean[] projection) {
+		this(table, Long.MIN_VALUE, Long.MAX_VALUE, predicate, projection);
+		this.rowids = rowids;
+	}
+
+	/**
+	 * Whether a scan of the table is worth running in parallel, see
+	 * DavisBasePrompt.parallelScanRecords.
+	 */
+	static boolean scansInParallel(Table table) {
+		int threshold = DavisBasePrompt.parallelScanRecords;
+		return threshold > 0 && table.totalNoRecords() >= threshold && ForkJoinPool.getCommonPoolParallelism() > 1;
+	}
+
+	/**
+	 * Opens a cursor over the whole table that scans its ranges in parallel.
+	 */
+	static RecordCursor parallel(Table table, Predicate predicate, boolean[] projection) throws Exception {
+		RecordCursor cursor = new RecordCursor(table, Long.MIN_VALUE, Long.MAX_VALUE, predicate, projection);
+		cursor.bounds = table.splitRowIds(RANGES_PER_THREAD * ForkJoinPool.getCommonPoolParallelism());
+		cursor.partitions = new ArrayDeque<>();
+		cursor.startRanges();
+		return cursor;
+	}
+
+	/**
+	 * Starts the next ranges until as many run as the pool has threads.
+	 */
+	private void startRanges() {
+		while (!closed && partitions.size() < ForkJoinPool.getCommonPoolParallelism() && position <= bounds.length) {
+			long low = position == 0 ? Long.MIN_VALUE : bounds[position - 1] + 1;
+			long high = position < bounds.length ? bounds[position] : Long.MAX_VALUE;
+			RecordCursor range = new RecordCursor(table, low, high, predicate, projection);
+			partitions.add(ForkJoinPool.commonPool().submit(() -> collect(range)));
+			position++;
+		}
+	}
+
+	private List<RecordCell> collect(RecordCursor range) throws Exception {
+		List<RecordCell> records = new ArrayList<>();
+		for (RecordCell record = closed ? null : range.next(); record != null && !closed; record = range.next())
+			records.add(record);
+		return records;
+	}
+
+	/**
+	 * Ends the cursor after the given number of records, -1 for no limit.
+	 */
+	void setLimit(long limit) {
+		this.limit = limit;
+		this.returned = 0;
+	}
+
+	/**
+	 * Skips the given number of matching records. Without a condition the
+	 * records of a leaf are counted by its record pointers, none is read.
+	 */
+	void skip(long count) throws Exception {
+		if (predicate != null || rowids != null || partitions != null) {
+			while (count > 0 && next() != null)
+				count--;
+			return;
+		}
+		while (count > 0 && !done) {
+			Page p = pointers == null ? table.latchLeaf(nextRowId) : table.pinShared(page);
+			try {
+				if (p.getVersion() != version)
+					load(p, nextRowId);
+				int skipped = (int) Math.min(count, pointers.length - index);
+				if (skipped > 0) {
+					index += skipped;
+					nextRowId = p.readInt(pointers[index - 1] + 2) + 1L;
+					count -= skipped;
+				}
+				if (count > 0) {
+					int nextPage = table.fetchNextLeafPage(p);
+					if (nextPage == 0xFFFFFFFF) {
+						done = true;
+						break;
+					}
+					page = nextPage;
+					version = -1;
+				}
+			} finally {
+				table.unpinShared(p);
+			}
+		}
+	}
+
+	/**
+	 * Returns the next record matching the condition, or null at the end.
+	 */
+	public RecordCell next() throws Exception {
+		if (limit >= 0 && returned >= limit)
+			return null;
+		RecordCell record = rowids != null ? nextOfRowIds() : partitions != null ? nextOfPartitions() : nextOfLeaves();
+		if (record != null)
+			returned++;
+		return record;
+	}
+
+	private RecordCell nextOfLeaves() throws Exception {
+		while (!done) {
+			RecordCell record = null;
+			Page p = pointers == null ? table.latchLeaf(nextRowId) : table.pinShared(page);
+			try {
+				if (p.getVersion() != version)
+					load(p, nextRowId);
+				if (index >= pointers.length) {
+					int nextPage = table.fetchNextLeafPage(p);
+					if (nextPage == 0xFFFFFFFF) {
+						done = true;
+						break;
+					}
+					// its records all come after nextRowId, a split of it moves them to the right
+					page = nextPage;
+					version = -1;
+					continue;
+				}
+
+				int recLoc = pointers[index];
+				int rowid = p.readInt(recLoc + 2);
+				if (rowid > high) {
+					done = true;
+					break;
+				}
+				if (predicate == null || predicate.test(p, recLoc))
+					record = table.readRecord(p, recLoc, projection);
+				nextRowId = rowid + 1L;
+				index++;
+			} finally {
+				table.unpinShared(p);
+			}
+			if (record != null)
+				return record;
+		}
+		return null;
+	}
+
+	private RecordCell nextOfPartitions() throws Exception {
+		while (partition == null || !partition.hasNext()) {
+			partition = null;
+			ForkJoinTask<List<RecordCell>> task = partitions.poll();
+			if (task == null)
+				return null;
+			startRanges();
+			try {
+				partition = task.get().iterator();
+			} catch (ExecutionException e) {
+				close();
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		return partition.next();
+	}
+
+	/**
+	 * Stops a parallel cursor: ranges not started yet read nothing, running
+	 * ones stop at their next record. Returns once none of them reads the
+	 * table any more.
+	 */
+	@Override
+	public void close() {
+		if (partitions == null || closed)
+			return;
+		closed = true;
+		for (ForkJoinTask<List<RecordCell>> task : partitions)
+			task.quietlyJoin();
+		partitions.clear();
+		partition = null;
+	}
+
+	private RecordCell nextOfRowIds() throws Exception {
+		for (long rowid = rowids.next(); rowid != -1; rowid = rowids.next()) {
+			Page p = null;
+			if (pointers != null && pointers.length > 0) {
+				p = table.pinShared(page);
+				if (p.getVersion() != version || rowid > p.readInt(pointers[pointers.length - 1] + 2)) {
+					table.unpinShared(p);
+					p = null;
+				}
+			}
+			if (p == null) {
+				p = table.latchLeaf(rowid);
+				page = p.getPageNumber();
+				version = p.getVersion();
+				pointers = table.fetchRecordPointers(p);
+			}
+			try {
+				int i = table.findFirstRecord(p, pointers, rowid);
+				if (i < pointers.length && p.readInt(pointers[i] + 2) == rowid
+						&& (predicate == null || predicate.test(p, pointers[i])))
+					return table.readRecord(p, pointers[i], projection);
+			} finally {
+				table.unpinShared(p);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the record pointers of the latched leaf and finds the first record
+	 * from the rowid on.
+	 */
+	private void load(Page p, long rowid) throws Exception {
+		page = p.getPageNumber();
+		version = p.getVersion();
+		pointers = table.fetchRecordPointers(p);
+		index = table.findFirstRecord(p, pointers, rowid);
+		if (useZones && index < pointers.length && !predicate.mayMatch(table.getZone(p, pointers))) {
+			nextRowId = p.readInt(pointers[pointers.length - 1] + 2) + 1L;
+			index = pointers.length;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * ORDER BY of the records read by a cursor. Records are added one at a time
+ * and read back in order once all of them are in.
+ *
+ * Up to DavisBasePrompt.sortRecords records are sorted in memory. Beyond
+ * that every full buffer is sorted and written to a run file under data/,
+ * and the runs are merged as the records are read back.
+ *
+ * With a LIMIT of n records that fit in memory, only the n first records
+ * seen so far are kept, in a heap whose top is the last of them.
+ *
+ * NULL values come first in ascending order. Records with equal values keep
+ * their rowid order.
+ */
+public final class RecordSorter implements RecordSource, Closeable {
+
+	/* Runs merged at once, more are merged in several passes. */
+	private static final int MAX_FAN_IN = 64;
+
+	private final TableSchema schema;
+	private final int[] columns;
+	private final boolean[] descending;
+	private final boolean[] projection;
+	private final long limit;
+	private final int maxRecords;
+	private final File spillDirectory;
+	private final Comparator<RecordCell> order = this::compare;
+
+	private List<RecordCell> buffer = new ArrayList<>();
+	private PriorityQueue<RecordCell> top;
+	private final List<SpillFile> runs = new ArrayList<>();
+
+	private Iterator<RecordCell> sorted;
+	private PriorityQueue<Head> merge;
+	private long returned = 0;
+
+	/* Next record of a run being merged. */
+	private static final class Head {
+		RecordCell record;
+		final SpillFile run;
+
+		Head(RecordCell record, SpillFile run) {
+			this.record = record;
+			this.run = run;
+		}
+	}
+
+	/**
+	 * @param columns
+	 *            0 based column indexes to sort by, 0 is the rowid
+	 * @param projection
+	 *            the payload columns of the records, those sorted by must be
+	 *            set
+	 * @param limit
+	 *            number of records wanted, -1 for all
+	 */
+	public RecordSorter(TableSchema schema, int[] columns, boolean[] descending, boolean[] projection, long limit,
+			int maxRecords, File spillDirectory) {
+		this.schema = schema;
+		this.columns = columns;
+		this.descending = descending;
+		this.projection = projection;
+		this.limit = limit;
+		this.maxRecords = maxRecords;
+		this.spillDirectory = spillDirectory;
+		if (limit >= 0 && limit <= maxRecords)
+			top = new PriorityQueue<>((int) Math.max(limit, 1), order.reversed());
+	}
+
+	public void add(RecordCell record) throws IOException {
+		if (top != null) {
+			if (top.size() < limit) {
+				top.add(record);
+			} else if (limit > 0 && compare(record, top.peek()) < 0) {
+				top.poll();
+				top.add(record);
+			}
+			return;
+		}
+		buffer.add(record);
+		if (buffer.size() >= maxRecords)
+			runs.add(writeRun());
+	}
+
+	private SpillFile writeRun() throws IOException {
+		buffer.sort(order);
+		SpillFile run = new SpillFile(spillDirectory, "sort", schema, projection);
+		try {
+			for (RecordCell record : buffer)
+				run.write(record);
+		} catch (IOException e) {
+			run.close();
+			throw e;
+		}
+		buffer.clear();
+		return run;
+	}
+
+	@Override
+	public RecordCell next() throws Exception {
+		if (sorted == null && merge == null)
+			finish();
+		if (limit >= 0 && returned >= limit)
+			return null;
+		RecordCell record;
+		if (sorted != null) {
+			record = sorted.hasNext() ? sorted.next() : null;
+		} else {
+			Head head = merge.poll();
+			if (head == null)
+				return null;
+			record = head.record;
+			head.record = head.run.next();
+			if (head.record != null)
+				merge.add(head);
+		}
+		if (record != null)
+			returned++;
+		return record;
+	}
+
+	private void finish() throws IOException {
+		if (top != null) {
+			buffer = new ArrayList<>(top);
+			top = null;
+		}
+		if (runs.isEmpty()) {
+			buffer.sort(order);
+			sorted = buffer.iterator();
+			return;
+		}
+		if (!buffer.isEmpty())
+			runs.add(writeRun());
+		while (runs.size() > MAX_FAN_IN) {
+			List<SpillFile> pass = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+			runs.subList(0, MAX_FAN_IN).clear();
+			runs.add(mergeRuns(pass));
+		}
+		merge = openMerge(runs);
+	}
+
+	private PriorityQueue<Head> openMerge(List<SpillFile> input) throws IOException {
+		PriorityQueue<Head> heads = new PriorityQueue<>(input.size(), (a, b) -> compare(a.record, b.record));
+		for (SpillFile run : input) {
+			RecordCell record = run.next();
+			if (record != null)
+				heads.add(new Head(record, run));
+		}
+		return heads;
+	}
+
+	private SpillFile mergeRuns(List<SpillFile> input) throws IOException {
+		SpillFile output = new SpillFile(spillDirectory, "sort", schema, projection);
+		try {
+			PriorityQueue<Head> heads = openMerge(input);
+			for (Head head = heads.poll(); head != null; head = heads.poll()) {
+				output.write(head.record);
+				head.record = head.run.next();
+				if (head.record != null)
+					heads.add(head);
+			}
+		} catch (IOException e) {
+			output.close();
+			throw e;
+		} finally {
+			for (SpillFile run : input)
+				run.close();
+		}
+		return output;
+	}
+
+	private int compare(RecordCell a, RecordCell b) {
+		for (int i = 0; i < columns.length; i++) {
+			int comparison = compareColumn(a, b, columns[i]);
+			if (comparison != 0)
+				return descending[i] ? -comparison : comparison;
+		}
+		return Integer.compare(a.getRowId(), b.getRowId());
+	}
+
+	private int compareColumn(RecordCell a, RecordCell b, int column) {
+		if (column == 0)
+			return Integer.compare(a.getRowId(), b.getRowId());
+		PayLoad x = a.getPayload();
+		PayLoad y = b.getPayload();
+		int i = column - 1;
+		if (x.isNull(i) || y.isNull(i))
+			return Boolean.compare(!x.isNull(i), !y.isNull(i));
+		DataTypes type = schema.getType(column);
+		if (type == DataTypes.TEXT)
+			return x.getText(i).compareTo(y.getText(i));
+		if (type.isDouble())
+			return Double.compare(x.getDouble(i), y.getDouble(i));
+		return Long.compare(x.getLong(i), y.getLong(i));
+	}
+
+	/**
+	 * Deletes the run files.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (SpillFile run : runs)
+			run.close();
+		runs.clear();
+	}
+}
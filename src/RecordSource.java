@@ -0,0 +1,11 @@
+/**
+ * Records read one at a time, from a table by RecordCursor or from an
+ * operator over one, e.g. RecordSorter.
+ */
+public interface RecordSource {
+
+	/**
+	 * Returns the next record, or null at the end.
+	 */
+	RecordCell next() throws Exception;
+}
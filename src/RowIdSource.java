@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Rowids an index found for a condition, read one at a time in increasing
+ * order without repeats, see RecordCursor.
+ */
+public interface RowIdSource {
+
+	/**
+	 * Returns the next rowid, or -1 at the end.
+	 */
+	long next() throws IOException;
+
+	/**
+	 * The rowids of the array, sorted and with the repeated ones dropped.
+	 */
+	static RowIdSource of(int[] rowids) {
+		Arrays.sort(rowids);
+		return new RowIdSource() {
+			private int position = 0;
+
+			@Override
+			public long next() {
+				while (position < rowids.length) {
+					int rowid = rowids[position++];
+					if (position == 1 || rowid != rowids[position - 2])
+						return rowid;
+				}
+				return -1;
+			}
+		};
+	}
+
+	/**
+	 * Merges the sources, a rowid found by several of them comes once. Only
+	 * the next rowid of every source is held.
+	 */
+	static RowIdSource union(List<RowIdSource> sources) throws IOException {
+		if (sources.size() == 1)
+			return sources.get(0);
+		// heads of the sources: the next rowid and the index of its source
+		PriorityQueue<long[]> heads = new PriorityQueue<>(sources.size(), (a, b) -> Long.compare(a[0], b[0]));
+		for (int i = 0; i < sources.size(); i++) {
+			long rowid = sources.get(i).next();
+			if (rowid != -1)
+				heads.add(new long[] { rowid, i });
+		}
+		return new RowIdSource() {
+			private long last = -1;
+
+			@Override
+			public long next() throws IOException {
+				for (long[] head = heads.poll(); head != null; head = heads.poll()) {
+					long rowid = head[0];
+					head[0] = sources.get((int) head[1]).next();
+					if (head[0] != -1)
+						heads.add(head);
+					if (rowid != last)
+						return last = rowid;
+				}
+				return -1;
+			}
+		};
+	}
+}
@@ -0,0 +1,96 @@
+import java.io.*;
+
+/**
+ * Temporary file under data/ holding records that do not fit in memory, see
+ * HashAggregation, RecordSorter and HashJoin. The records are written one
+ * after the other with their rowid and the columns of the projection, then
+ * read back in the same order. Closing the file deletes it.
+ */
+final class SpillFile implements RecordSource, Closeable {
+
+	private final File file;
+	private final TableSchema schema;
+	private final boolean[] projection;
+	private DataOutputStream out;
+	private DataInputStream in;
+
+	SpillFile(File directory, String prefix, TableSchema schema, boolean[] projection) throws IOException {
+		this.file = File.createTempFile(prefix, ".tmp", directory);
+		this.file.deleteOnExit();
+		this.schema = schema;
+		this.projection = projection;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	}
+
+	void write(RecordCell record) throws IOException {
+		out.writeInt(record.getRowId());
+		PayLoad payload = record.getPayload();
+		for (int i = 0; i < projection.length; i++) {
+			if (!projection[i])
+				continue;
+			out.writeByte(payload.getTypeCode(i));
+			if (payload.isNull(i))
+				continue;
+			DataTypes type = schema.getType(i + 1);
+			if (type == DataTypes.TEXT)
+				out.writeUTF(payload.getText(i));
+			else if (type.isDouble())
+				out.writeDouble(payload.getDouble(i));
+			else
+				out.writeLong(payload.getLong(i));
+		}
+	}
+
+	/**
+	 * Returns the next record, null at the end. The first read ends writing.
+	 */
+	@Override
+	public RecordCell next() throws IOException {
+		if (in == null) {
+			out.close();
+			out = null;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+		int rowid;
+		try {
+			rowid = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		PayLoad payload = new PayLoad();
+		payload.setNumberOfColumns((byte) projection.length);
+		payload.setDataTypes(new byte[projection.length]);
+		for (int i = 0; i < projection.length; i++) {
+			if (!projection[i])
+				continue;
+			payload.getDataTypes()[i] = in.readByte();
+			if (payload.isNull(i))
+				continue;
+			DataTypes type = schema.getType(i + 1);
+			if (type == DataTypes.TEXT)
+				payload.setText(i, in.readUTF());
+			else if (type.isDouble())
+				payload.setDouble(i, in.readDouble());
+			else
+				payload.setLong(i, in.readLong());
+		}
+		RecordCell record = new RecordCell();
+		record.setRowId(rowid);
+		record.setPayload(payload);
+		return record;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (out != null)
+				out.close();
+			if (in != null)
+				in.close();
+		} finally {
+			out = null;
+			in = null;
+			file.delete();
+		}
+	}
+}
@@ -1,516 +1,957 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.*;
-import java.time.temporal.TemporalAccessor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Table {
+	/*
+	 * Page 0 of every table file is the file header: magic number (4), page
+	 * size (4), root page (4), last leaf page (4), next rowid (4), number of
+	 * records (4).
+	 */
+	private static final int FILE_MAGIC = 0x44425442;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_PAGE_SIZE = 4;
+	private static final int HEADER_ROOT_PAGE = 8;
+	private static final int HEADER_LAST_LEAF = 12;
+	private static final int HEADER_NEXT_ROWID = 16;
+	private static final int HEADER_ROW_COUNT = 20;
+	private static final int HEADER_LENGTH = 24;
+
+	/*
+	 * Every other page starts with: node type (1), fragmented bytes (1), number
+	 * of cells (2), start of the cell content (2), first free block (2), next
+	 * leaf page or right most child (4), followed by the 2 byte cell pointers.
+	 *
+	 * The space of a removed cell becomes a free block: next free block (2),
+	 * size (2). Free blocks are kept in offset order, 0 ends the list. Holes
+	 * too small for a free block are counted as fragmented bytes.
+	 */
+	private static final int PAGE_FRAGMENTS = 1;
+	private static final int PAGE_CELL_COUNT = 2;
+	private static final int PAGE_CONTENT_START = 4;
+	private static final int PAGE_FREE_BLOCK = 6;
+	private static final int PAGE_NEXT = 8;
+	private static final int PAGE_HEADER_SIZE = 12;
+	private static final int MIN_FREE_BLOCK = 4;
+	private static final int MAX_FRAGMENTS = 60;
+	/*
+	 * An index lookup expected to find more of the records than this is slower
+	 * than a scan: it seeks a leaf per record and skips the zone maps.
+	 */
+	private static final double MAX_LOOKUP_SELECTIVITY = 0.1;
+
+	public static final int MIN_PAGE_SIZE = 512;
+	public static final int MAX_PAGE_SIZE = 32768;
+
 	private String TableName = "";
 	private String Path = "";
 	private boolean IsMetaTable = false;
-	private static final int FILESIZE = 512;
-	private int NoPages = 0;
-	private RandomAccessFile binaryFile;
-	private Map<Integer, RecordCell> Columns;
+	private int PageSize = MIN_PAGE_SIZE;
+	private volatile int RootPage = 1;
+	private int LastLeafPage = 1;
+	private volatile int NextRowId = 1;
+	private volatile int RowCount = 0;
+	private String FileName;
+	private PageStore Store;
+	private TableSchema Schema;
+	private List<Index> Indexes = new ArrayList<>();
+	private volatile ZoneMap Zones;
+	private volatile boolean Closed = false;
+
+	/*
+	 * Statements reading the table hold it shared, statements that replace its
+	 * file or its indexes hold it exclusively. Writes to the records only take
+	 * page latches: one statement at a time writes, see DavisBasePrompt, and
+	 * readers run beside it.
+	 */
+	private final ReentrantReadWriteLock Lock = new ReentrantReadWriteLock(true);
 
 	public void initialize(String path, String tableName) throws Exception {
 		this.TableName = tableName;
 		this.Path = path;
-		binaryFile = new RandomAccessFile(this.Path + "/" + this.TableName + ".tbl", "rw");
+		this.FileName = this.Path + "/" + this.TableName + ".tbl";
 		IsMetaTable = this.Path.contains("catalog");
-		NoPages = (int) binaryFile.length() / FILESIZE;
-		if (!IsMetaTable)
-			fetchMetaData();
+		PageSize = readPageSize(FileName);
+		Store = PageStore.open(FileName, PageSize);
+		readHeader();
+		Schema = Catalog.getSchema(TableName);
+		if (Schema == null)
+			throw new Exception(TableName + " Table does not exist.");
+		Zones = ZoneMap.open(ZoneMap.fileName(FileName), Schema, PageSize, this);
+		for (Map.Entry<String, String> index : Catalog.getIndexes(TableName).entrySet())
+			Indexes.add(Index.open(Path, index.getKey(), Schema, index.getValue()));
 	}
 
-	private void fetchMetaData() throws Exception {
-		// fetch root_page.
-		if (!IsMetaTable) {
-			Table metaTable = new Table();
-			metaTable.initialize("data/catalog", "davisbase_columns");
-			Columns = metaTable.selectRecords(new String[] { "*" }, // Columns needed
-					new String[] { "table_name", "=", TableName }); // where tableName = TableName condition
-		}
+	public String getPath() {
+		return Path;
+	}
+
+	public String getTableName() {
+		return TableName;
+	}
+
+	public TableSchema getSchema() {
+		return Schema;
 	}
 
 	public boolean isMeta() {
 		return IsMetaTable;
 	}
 
-	public void createFile(String path, String tableName) throws IOException {
-		createTableFile(path, tableName);
+	public void lockShared() {
+		Lock.readLock().lock();
+	}
+
+	public boolean tryLockShared() {
+		return Lock.readLock().tryLock();
+	}
+
+	public void unlockShared() {
+		Lock.readLock().unlock();
+	}
+
+	public void lockExclusive() {
+		Lock.writeLock().lock();
+	}
+
+	public void unlockExclusive() {
+		Lock.writeLock().unlock();
+	}
+
+	/**
+	 * Returns the zone of a leaf page, pointers are the record pointers of
+	 * the page.
+	 */
+	ZoneMap.Zone getZone(Page p, int[] pointers) throws IOException, UnknownDataTypeException {
+		return Zones.get(p, pointers);
+	}
+
+	/**
+	 * Returns the index on a payload column, or null if it is not indexed.
+	 */
+	public Index getIndex(int column) {
+		for (Index index : Indexes)
+			if (index.getColumn() == column)
+				return index;
+		return null;
+	}
+
+	/**
+	 * Starts maintaining an index built for this table.
+	 */
+	public void addIndex(Index index) {
+		Indexes.add(index);
+	}
+
+	public void createFile(String path, String tableName, int pageSize) throws IOException {
+		createTableFile(path, tableName, pageSize);
 		setLeafHeaders(1);
 	}
 
-	private void createTableFile(String path, String tableName) throws IOException {
-		binaryFile = new RandomAccessFile(path + "/" + tableName + ".tbl", "rw");
-		binaryFile.setLength(0);
-		binaryFile.setLength(FILESIZE);
-		this.NoPages = 1;
+	private void createTableFile(String path, String tableName, int pageSize) throws IOException {
+		createTableFile(path + "/" + tableName + ".tbl", pageSize);
 	}
 
-	private void setLeafHeaders(int page) throws IOException {
-		int fileBegin = (page - 1) * FILESIZE;
-		binaryFile.seek(fileBegin + 0);
-		binaryFile.writeByte(NodeTypes.LeafNode.getValue());
+	private void createTableFile(String fileName, int pageSize) throws IOException {
+		this.FileName = fileName;
+		this.PageSize = pageSize;
+		// the zones of a dropped table of the same name, written again on open
+		String zoneFile = ZoneMap.fileName(FileName);
+		BufferPool.discard(zoneFile);
+		Files.deleteIfExists(Paths.get(zoneFile));
+		Store = PageStore.open(FileName, PageSize);
+		Store.truncate();
+		Store.allocatePage();
+		Store.allocatePage();
+
+		Page header = pin(0);
+		try {
+			header.writeInt(HEADER_MAGIC, FILE_MAGIC);
+			header.writeInt(HEADER_PAGE_SIZE, PageSize);
+		} finally {
+			unpin(header);
+		}
+		this.RootPage = 1;
+		this.LastLeafPage = 1;
+		this.NextRowId = 1;
+		this.RowCount = 0;
+		writeHeader();
+	}
 
-		binaryFile.seek(fileBegin + 2);
-		binaryFile.writeShort(512);
+	public static boolean isValidPageSize(int pageSize) {
+		return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+	}
 
-		binaryFile.seek(fileBegin + 4);
-		binaryFile.writeInt(0xFFFFFFFF);
+	/**
+	 * Reads the page size from the file header, it is needed before any page
+	 * can be read.
+	 */
+	private static int readPageSize(String fileName) throws IOException, InvalidFileException {
+		try (FileChannel file = new RandomAccessFile(fileName, "r").getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while (header.hasRemaining() && file.read(header, header.position()) > 0)
+				;
+			if (header.hasRemaining())
+				throw new InvalidFileException(fileName + " is not a DavisBase table file.");
+			int magic = header.getInt(HEADER_MAGIC);
+			int pageSize = header.getInt(HEADER_PAGE_SIZE);
+			if (magic != FILE_MAGIC || !isValidPageSize(pageSize))
+				throw new InvalidFileException(fileName + " is not a DavisBase table file.");
+			return pageSize;
+		}
 	}
 
-	private void setNodeHeaders(int page) throws IOException {
-		int fileBegin = (page - 1) * FILESIZE;
-		binaryFile.seek(fileBegin + 0);
-		binaryFile.writeByte(NodeTypes.InternalNode.getValue());
+	public int getPageSize() {
+		return PageSize;
+	}
 
-		binaryFile.seek(fileBegin + 2);
-		binaryFile.writeShort(512);
+	/**
+	 * Loads the tree bookkeeping of the file header, it is served from memory
+	 * while the table is open.
+	 */
+	private void readHeader() throws IOException {
+		Page header = pin(0);
+		try {
+			RootPage = header.readInt(HEADER_ROOT_PAGE);
+			LastLeafPage = header.readInt(HEADER_LAST_LEAF);
+			NextRowId = header.readInt(HEADER_NEXT_ROWID);
+			RowCount = header.readInt(HEADER_ROW_COUNT);
+		} finally {
+			unpin(header);
+		}
+	}
 
-		binaryFile.seek(fileBegin + 4);
-		binaryFile.writeInt(0xFFFFFFFF);
+	/**
+	 * Stores the tree bookkeeping in the file header. The header page is written
+	 * back together with the data pages changed by the same statement.
+	 */
+	private void writeHeader() throws IOException {
+		Page header = pin(0);
+		try {
+			header.writeInt(HEADER_ROOT_PAGE, RootPage);
+			header.writeInt(HEADER_LAST_LEAF, LastLeafPage);
+			header.writeInt(HEADER_NEXT_ROWID, NextRowId);
+			header.writeInt(HEADER_ROW_COUNT, RowCount);
+		} finally {
+			unpin(header);
+		}
 	}
 
-	public boolean isLeaf(int page) throws IOException {
-		binaryFile.seek(((page - 1) * FILESIZE) + 0);
-		return (int) binaryFile.readByte() == NodeTypes.LeafNode.getValue();
+	private int fetchRootPage() {
+		return RootPage;
 	}
 
-	public boolean isNode(int page) throws IOException {
-		binaryFile.seek(((page - 1) * FILESIZE) + 0);
-		return (int) binaryFile.readByte() == NodeTypes.InternalNode.getValue();
+	private void setRootPage(int page) {
+		RootPage = page;
 	}
 
-	public Map<Integer, String> getColumnNames() {
-		Map<Integer, String> colNames = new LinkedHashMap<>();
-		if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_columns")) {
-			colNames.put(1, "rowid");
-			colNames.put(2, "table_name");
-			colNames.put(3, "column_name");
-			colNames.put(4, "data_type");
-			colNames.put(5, "ordinal_position");
-			colNames.put(6, "is_nullable");
-		} else if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_tables")) {
-			colNames.put(1, "rowid");
-			colNames.put(2, "table_name");
-		} else {
-			Object[] cols = Columns.values().toArray();
-			for (int i = 0; i < cols.length; i++) {
-				String[] columnData = ((RecordCell) cols[i]).getPayload().getData();
-				colNames.put(Integer.parseInt(columnData[3]), columnData[1]);
-			}
+	Page pin(int page) throws IOException {
+		return Store.pin(page);
+	}
+
+	void unpin(Page page) {
+		Store.unpin(page);
+	}
+
+	/**
+	 * Pins the page and latches it shared, undone by unpinShared.
+	 */
+	Page pinShared(int page) throws IOException {
+		Page p = pin(page);
+		p.latchShared();
+		return p;
+	}
+
+	void unpinShared(Page p) {
+		p.unlatchShared();
+		unpin(p);
+	}
+
+	/**
+	 * Pins the page and latches it exclusively, undone by unpinExclusive. The
+	 * writer may pin the page again meanwhile without the latch.
+	 */
+	private Page pinExclusive(int page) throws IOException {
+		Page p = pin(page);
+		p.latchExclusive();
+		return p;
+	}
+
+	private void unpinExclusive(Page p) {
+		p.unlatchExclusive();
+		unpin(p);
+	}
+
+	private int readByte(int page, int offset) throws IOException {
+		Page p = pin(page);
+		try {
+			return p.readByte(offset);
+		} finally {
+			unpin(p);
 		}
-		return colNames;
 	}
 
-	public Map<Integer, String> getColumnDataTypes() {
-		Map<Integer, String> colDataTypes = new LinkedHashMap<>();
-		Object[] cols = Columns.values().toArray();
-		for (int i = 0; i < cols.length; i++) {
-			String[] columnData = ((RecordCell) cols[i]).getPayload().getData();
-			colDataTypes.put(Integer.parseInt(columnData[3]), columnData[2]);
+	private int readShort(int page, int offset) throws IOException {
+		Page p = pin(page);
+		try {
+			return p.readShort(offset);
+		} finally {
+			unpin(p);
 		}
-		return colDataTypes;
 	}
 
-	public Map<Integer, String> getColumnNullable() {
-		Map<Integer, String> isNullable = new LinkedHashMap<>();
-		Object[] cols = Columns.values().toArray();
-		for (int i = 0; i < cols.length; i++) {
-			String[] columnData = ((RecordCell) cols[i]).getPayload().getData();
-			isNullable.put(Integer.parseInt(columnData[3]), columnData[4]);
+	private int readInt(int page, int offset) throws IOException {
+		Page p = pin(page);
+		try {
+			return p.readInt(offset);
+		} finally {
+			unpin(p);
 		}
-		return isNullable;
 	}
 
-	public Map<Integer, ColumnDetails> getColumnDetails() {
-		Map<Integer, ColumnDetails> colDetails = new LinkedHashMap<>();
-		Object[] cols = Columns.values().toArray();
-		for (int i = 0; i < cols.length; i++) {
-			String[] columnData = ((RecordCell) cols[i]).getPayload().getData();
-			colDetails.put(Integer.parseInt(columnData[3]), new ColumnDetails(columnData[1], columnData[2],
-					Integer.parseInt(columnData[3]), columnData[4].equalsIgnoreCase("yes")));
+	private void writeByte(int page, int offset, int value) throws IOException {
+		Page p = pin(page);
+		try {
+			p.writeByte(offset, value);
+		} finally {
+			unpin(p);
 		}
-		return colDetails;
 	}
 
-	public int fetchNoRecords() throws IOException {
-		int page = 1;
-		int total = 0;
-		while (page != 0xFFFFFFFF) {
-			total += findNoRecordsInPage(page);
-			page = fetchNextLeafPage(page);
+	private void writeShort(int page, int offset, int value) throws IOException {
+		Page p = pin(page);
+		try {
+			p.writeShort(offset, value);
+		} finally {
+			unpin(p);
+		}
+	}
+
+	private void writeInt(int page, int offset, int value) throws IOException {
+		Page p = pin(page);
+		try {
+			p.writeInt(offset, value);
+		} finally {
+			unpin(p);
+		}
+	}
+
+	private void setLeafHeaders(int page) throws IOException {
+		Page p = pin(page);
+		try {
+			p.writeByte(0, NodeTypes.LeafNode.getValue());
+			p.writeByte(PAGE_FRAGMENTS, 0);
+			p.writeShort(PAGE_CELL_COUNT, 0);
+			p.writeShort(PAGE_CONTENT_START, PageSize);
+			p.writeShort(PAGE_FREE_BLOCK, 0);
+			p.writeInt(PAGE_NEXT, 0xFFFFFFFF);
+		} finally {
+			unpin(p);
 		}
-		return total;
 	}
 
-	private int findNoRecordsInPage(int page) throws IOException {
-		binaryFile.seek(((page - 1) * FILESIZE) + 1);
-		return (int) binaryFile.readByte();
+	private void setNodeHeaders(int page) throws IOException {
+		Page p = pin(page);
+		try {
+			p.writeByte(0, NodeTypes.InternalNode.getValue());
+			p.writeByte(PAGE_FRAGMENTS, 0);
+			p.writeShort(PAGE_CELL_COUNT, 0);
+			p.writeShort(PAGE_CONTENT_START, PageSize);
+			p.writeShort(PAGE_FREE_BLOCK, 0);
+			p.writeInt(PAGE_NEXT, 0xFFFFFFFF);
+		} finally {
+			unpin(p);
+		}
+	}
+
+	public boolean isLeaf(int page) throws IOException {
+		return readByte(page, 0) == NodeTypes.LeafNode.getValue();
+	}
+
+	public Map<Integer, String> getColumnNames() {
+		return Schema.getColumnNames();
+	}
+
+	public Map<Integer, String> getColumnDataTypes() {
+		return Schema.getColumnDataTypes();
+	}
+
+	public Map<Integer, String> getColumnNullable() {
+		return Schema.getColumnNullable();
+	}
+
+	public Map<Integer, ColumnDetails> getColumnDetails() {
+		return Schema.getColumnDetails();
 	}
 
 	public int fetchNextLeafPage(int page) throws IOException {
-		binaryFile.seek(((page - 1) * FILESIZE) + 4);
-		return binaryFile.readInt();
+		return readInt(page, PAGE_NEXT);
 	}
 
-	public boolean canInsert(int page, int size) throws IOException {
-		// size + 2, considering the pointer to record in header
-		return (size + 2) < (FILESIZE - headerSize(page) - dataSize(page));
+	int fetchNextLeafPage(Page p) {
+		return p.readInt(PAGE_NEXT);
 	}
 
-	private int dataSize(int page) throws IOException {
-		int fstRecLoc = fetchTopRecLoc(page);
-		return FILESIZE - fstRecLoc;
+	public boolean canInsert(int page, int size) throws IOException {
+		Page p = pin(page);
+		try {
+			// size + 2, considering the pointer to record in header
+			return (size + 2) < freeSpace(p);
+		} finally {
+			unpin(p);
+		}
 	}
 
-	private int fetchTopRecLoc(int page) throws IOException {
-		binaryFile.seek(((page - 1) * FILESIZE) + 2);
-		return (int) binaryFile.readShort();
+	/**
+	 * Bytes of the page not taken by the header, the cell pointers or the
+	 * cells: the gap above the cell content, the free blocks and the fragmented
+	 * bytes.
+	 */
+	private int freeSpace(Page p) {
+		int free = p.readUnsignedShort(PAGE_CONTENT_START) - PAGE_HEADER_SIZE
+				- (2 * p.readUnsignedShort(PAGE_CELL_COUNT)) + (p.readByte(PAGE_FRAGMENTS) & 0xFF);
+		for (int block = p.readUnsignedShort(PAGE_FREE_BLOCK); block != 0; block = p.readUnsignedShort(block))
+			free += p.readUnsignedShort(block + 2);
+		return free;
 	}
 
-	public int headerSize(int page) throws IOException {
-		// fixed header size is 8 (1 + 1 + 2 + 4) for leaf or an internal node
-		int noRec = findNoRecordsInPage(page);
-		return 8 + (2 * noRec);
+	/**
+	 * Reserves size bytes for a cell and returns their location. The gap above
+	 * the cell content is used if it is large enough, otherwise the first free
+	 * block that fits; when neither does the page is defragmented. The page
+	 * must have the room, with one more cell pointer if newPointer is set.
+	 */
+	private int allocate(Page p, int size, boolean newPointer) {
+		int pointersEnd = PAGE_HEADER_SIZE + (2 * (p.readUnsignedShort(PAGE_CELL_COUNT) + (newPointer ? 1 : 0)));
+		int contentStart = p.readUnsignedShort(PAGE_CONTENT_START);
+		if (contentStart - pointersEnd < size) {
+			int fragments = p.readByte(PAGE_FRAGMENTS) & 0xFF;
+			int prev = PAGE_FREE_BLOCK;
+			// a free block only helps while the gap still holds the cell pointers
+			int first = contentStart < pointersEnd ? 0 : p.readUnsignedShort(prev);
+			for (int block = first; block != 0; block = p.readUnsignedShort(block)) {
+				int rest = p.readUnsignedShort(block + 2) - size;
+				if (rest >= MIN_FREE_BLOCK) {
+					// the cell takes the end of the block, the rest stays free
+					p.writeShort(block + 2, rest);
+					return block + rest;
+				}
+				if (rest >= 0 && fragments + rest <= MAX_FRAGMENTS) {
+					p.writeShort(prev, p.readUnsignedShort(block));
+					p.writeByte(PAGE_FRAGMENTS, fragments + rest);
+					return block;
+				}
+				prev = block;
+			}
+			defragment(p);
+			contentStart = p.readUnsignedShort(PAGE_CONTENT_START);
+		}
+		p.writeShort(PAGE_CONTENT_START, contentStart - size);
+		return contentStart - size;
 	}
 
-	private void insertRec(int page, int payLoadSize, RecordCell dataCell) throws IOException {
-		this.insertRec(page, payLoadSize, dataCell, -1);
+	/**
+	 * Returns the space of a cell that is no longer pointed to. Space at the
+	 * start of the cell content goes back to the gap, other space joins the
+	 * free block list and is merged with the free blocks next to it.
+	 */
+	private void freeCell(Page p, int loc, int size) {
+		int contentStart = p.readUnsignedShort(PAGE_CONTENT_START);
+		if (loc == contentStart) {
+			contentStart += size;
+			// free blocks are in offset order, the first ones may now touch the gap
+			int block = p.readUnsignedShort(PAGE_FREE_BLOCK);
+			while (block == contentStart) {
+				contentStart += p.readUnsignedShort(block + 2);
+				block = p.readUnsignedShort(block);
+			}
+			p.writeShort(PAGE_FREE_BLOCK, block);
+			p.writeShort(PAGE_CONTENT_START, contentStart);
+			return;
+		}
+
+		int prev = PAGE_FREE_BLOCK;
+		int next = p.readUnsignedShort(prev);
+		while (next != 0 && next < loc) {
+			prev = next;
+			next = p.readUnsignedShort(next);
+		}
+		if (next != 0 && loc + size == next) {
+			size += p.readUnsignedShort(next + 2);
+			next = p.readUnsignedShort(next);
+		}
+		if (prev != PAGE_FREE_BLOCK && prev + p.readUnsignedShort(prev + 2) == loc) {
+			p.writeShort(prev + 2, p.readUnsignedShort(prev + 2) + size);
+			p.writeShort(prev, next);
+		} else if (size >= MIN_FREE_BLOCK) {
+			p.writeShort(loc, next);
+			p.writeShort(loc + 2, size);
+			p.writeShort(prev, loc);
+		} else {
+			int fragments = (p.readByte(PAGE_FRAGMENTS) & 0xFF) + size;
+			if (fragments > MAX_FRAGMENTS)
+				defragment(p);
+			else
+				p.writeByte(PAGE_FRAGMENTS, fragments);
+		}
 	}
 
-	private void insertRec(int page, int payLoadSize, RecordCell dataCell, int location) throws IOException {
-		// TopMost Record - data length
-		int newFstRecLoc = fetchTopRecLoc(page) - payLoadSize;
+	/**
+	 * Moves the cells of a leaf against the end of the page, so all of its
+	 * free space is in the gap above the cell content.
+	 */
+	private void defragment(Page p) {
+		packCells(p, readCells(p));
+	}
 
-		// write data
-		binaryFile.seek((page - 1) * FILESIZE + newFstRecLoc);
-		binaryFile.writeShort(dataCell.getPayLoadSize());
-		binaryFile.writeInt(dataCell.getRowId());
+	/**
+	 * Serializes a record into the on-page cell format: payload size (2), rowid
+	 * (4), number of columns (1), data type codes, column values.
+	 */
+	private byte[] encodeCell(RecordCell dataCell) throws UnknownDataTypeException {
+		Page p = new Page(FileName, -1, ByteBuffer.allocate(dataCell.getPayLoadSize()));
+		int pos = 0;
+		p.writeShort(pos, dataCell.getPayLoadSize());
+		p.writeInt(pos + 2, dataCell.getRowId());
+		pos += 6;
 
 		PayLoad payload = dataCell.getPayload();
-		binaryFile.writeByte(payload.getNoColumns());
+		p.writeByte(pos++, payload.getNoColumns());
 
 		byte[] dataTypes = payload.getDataTypes();
-		binaryFile.write(dataTypes);
-
-		String data[] = payload.getData();
+		p.write(pos, dataTypes);
+		pos += dataTypes.length;
 
 		for (int i = 0; i < dataTypes.length; i++) {
-			switch (dataTypes[i]) {
+			int code = payload.getTypeCode(i);
+			switch (code) {
 			case 0x00:
-				binaryFile.writeByte(0);
-				break;
 			case 0x01:
-				binaryFile.writeShort(0);
-				break;
 			case 0x02:
-				binaryFile.writeInt(0);
-				break;
 			case 0x03:
-				binaryFile.writeLong(0);
+				// NULL, the cell buffer is already zero filled
 				break;
 			case 0x04:
-				binaryFile.writeByte(new Byte(data[i + 1]));
+				p.writeByte(pos, (int) payload.getLong(i));
 				break;
 			case 0x05:
-				binaryFile.writeShort(new Short(data[i + 1]));
+				p.writeShort(pos, (int) payload.getLong(i));
 				break;
 			case 0x06:
-				binaryFile.writeInt(new Integer(data[i + 1]));
+				p.writeInt(pos, (int) payload.getLong(i));
 				break;
 			case 0x07:
-				binaryFile.writeLong(new Long(data[i + 1]));
+			case 0x0A:
+			case 0x0B:
+				p.writeLong(pos, payload.getLong(i));
 				break;
 			case 0x08:
-				binaryFile.writeFloat(new Float(data[i + 1]));
+				p.writeFloat(pos, (float) payload.getDouble(i));
 				break;
 			case 0x09:
-				binaryFile.writeDouble(new Double(data[i + 1]));
-				break;
-			case 0x0A:
-				long datetime = binaryFile.readLong();
-				ZoneId zoneId = ZoneId.of("America/Chicago");
-				Instant x = Instant.ofEpochSecond(datetime);
-				ZonedDateTime zdt2 = ZonedDateTime.ofInstant(x, zoneId);
-				zdt2.toLocalTime();
-				break;
-			case 0x0B:
-				long date = binaryFile.readLong();
-				ZoneId zoneId1 = ZoneId.of("America/Chicago");
-				Instant x1 = Instant.ofEpochSecond(date);
-				ZonedDateTime zdt3 = ZonedDateTime.ofInstant(x1, zoneId1);
+				p.writeDouble(pos, payload.getDouble(i));
 				break;
 			default:
-				binaryFile.writeBytes(data[i + 1]);
+				String text = payload.getText(i);
+				for (int c = 0; c < text.length(); c++)
+					p.writeByte(pos + c, text.charAt(c));
 				break;
 			}
+			pos += getSizeByHeader(code);
 		}
 
-		// write the new TopMost Record to header
-		binaryFile.seek((page - 1) * FILESIZE + 2);
-		binaryFile.writeShort(newFstRecLoc);
-
-		if (location == -1) {
-			// increment the count on file
-			int count = findNoRecordsInPage(page);
-			binaryFile.seek((page - 1) * FILESIZE + 1);
-			binaryFile.writeByte(count + 1);
+		return p.getBuffer().array();
+	}
 
-			// add the pointer to the new rec to the pointer list.
-			binaryFile.seek((page - 1) * FILESIZE + 8 + ((count == 0) ? 0 : (count * 2)));
-			binaryFile.writeShort(newFstRecLoc);
-		} else {
-			int count = findNoRecordsInPage(page);
-			binaryFile.seek((page-1)*FILESIZE+8);
-			int i = 0;
-			int ptr = binaryFile.readShort();
-			while(i<count&&ptr!=location) {
-				ptr = binaryFile.readShort();
-				i++;
-			}
-			if(ptr == location) {
-				binaryFile.seek((page-1)*FILESIZE+8+(i*2));
-				binaryFile.writeShort(newFstRecLoc);
+	/**
+	 * Replaces the record at location by its new version. A version that is not
+	 * larger than the old one is written over it and the bytes left over are
+	 * freed, a larger one is written to space allocated on the page after the
+	 * old cell is freed. Returns false, leaving the page as it was, when the
+	 * page has no room for the new version.
+	 */
+	private boolean insertRec(int page, RecordCell dataCell, int location) throws Exception {
+		byte[] cell = encodeCell(dataCell);
+		Page p = pinExclusive(page);
+		try {
+			int oldSize = p.readUnsignedShort(location);
+			if (cell.length > oldSize && cell.length >= oldSize + freeSpace(p))
+				return false;
+			if (cell.length <= oldSize) {
+				Zones.remove(p, location);
+				p.write(location, cell);
+				Zones.add(p, location);
+				if (cell.length < oldSize)
+					freeCell(p, location + cell.length, oldSize - cell.length);
+			} else {
+				int index = findIndex(fetchRecordPointers(p), location);
+				removeCell(p, index);
+				insertCellAt(page, index, cell);
 			}
+			return true;
+		} finally {
+			unpinExclusive(p);
 		}
 	}
 
+	/**
+	 * Inserts a record with the next rowid. The values are matched to the
+	 * columns by colNames, or by position when no column list was given.
+	 */
 	public void insertToLeaf(String[] colNames, String[] values) throws Exception {
-		// +1 byte for number of columns, +6 bytes for the record headers, every column
-		// other than rowid has a byte header
-		Map<Integer, String> dataTypes = getColumnDataTypes();
-		Map<Integer, ColumnDetails> columnDetails = getColumnDetails();
-		Map<Integer, String> isNullable = getColumnNullable();
-		Object[] nullables = isNullable.values().toArray();
-		byte[] dataHeaders = new byte[columnDetails.size() - 1];
-		int headerPointer = 0;
-
-		for (int i = 0; i < values.length; i++) {
-			if (values[i].equalsIgnoreCase("null") && ((String) nullables[i]).equals("NO")) {
-				System.out.println("Cannot insert NULL values in NOT NULL field");
-				return;
-			}
-		}
-
-		int dataSize = (columnDetails.size() - 1) + 1 + 6;
-
-		for (int i : columnDetails.keySet()) {
-			ColumnDetails col = columnDetails.get(i);
+		boolean named = !(colNames.length == 1 && colNames[0].isEmpty());
+		String[] literals = new String[Schema.getColumnCount() - 1];
+		int i = 0;
+		for (ColumnDetails col : getColumnDetails().values()) {
 			if (col.column_name.equalsIgnoreCase("rowid")) {
 				continue;
 			}
-			int indx = findIndx(colNames, col.column_name);
-			if (indx != -1) {
-				dataSize += getDataTypeSize(col.data_type, values[indx].length());
-				dataHeaders[headerPointer++] = (byte) getDataTypeHeader(col.data_type, false, values[indx].length());
-			} else if (indx == -1 && col.is_nullable)
-				dataHeaders[headerPointer++] = (byte) getDataTypeHeader(col.data_type, true, 0);
-			else
+			int indx = named ? findIndx(colNames, col.column_name) : i + 1;
+			if (indx != -1 && indx < values.length)
+				literals[i] = values[indx];
+			else if (!col.is_nullable)
 				throw new Exception("Could not find column '" + col.column_name + "'");
+
+			if ((literals[i] == null || literals[i].equalsIgnoreCase("null")) && !col.is_nullable) {
+				System.out.println("Cannot insert NULL values in NOT NULL field");
+				return;
+			}
+			i++;
 		}
 
-		int pageNo = fetchLastPage();
-		// check leaf size
-		byte[] plDataType = new byte[columnDetails.size() - 1];
-		String[] dataTypeStr = new String[columnDetails.size()];
-		dataTypes.values().toArray(dataTypeStr);
-		int payLoadSize = getPayloadSize(values, plDataType, dataTypeStr);
-		payLoadSize = payLoadSize + 6;
+		int rowid = fetchNextRowID();
+		PayLoad payload = createPayLoad(literals);
+		insertCell(rowid, encodeCell(createCell(-1, rowid, payload)));
+		for (Index index : Indexes)
+			index.insert(payload, rowid);
+	}
 
-		boolean canInsert = canInsert(pageNo, payLoadSize);
+	/**
+	 * Inserts a catalog record, the values are in column order starting with
+	 * the rowid.
+	 */
+	public void insertToMeta(String[] colNames, String[] values) throws Exception {
+		if (!IsMetaTable)
+			return;
+		int rowid = fetchNextRowID();
+		RecordCell cell = createCell(-1, rowid, createPayLoad(Arrays.copyOfRange(values, 1, values.length)));
+		insertCell(rowid, encodeCell(cell));
+	}
 
-		if (canInsert) {
-			RecordCell cell = createCell(pageNo, fetchNextRowID(), (short) payLoadSize, plDataType, values);
-			insertRec(pageNo, payLoadSize, cell);
-		} else {
-			int rowid = fetchNextRowID();
-			int pNo = splitLeafPage(pageNo);
-			RecordCell cell = createCell(pNo, rowid, (short) payLoadSize, plDataType, values);
-			insertRec(pNo, payLoadSize, cell);
+	/**
+	 * Inserts a record cell into the leaf that owns its rowid. A full leaf is
+	 * split and the split is carried up the tree as far as needed.
+	 */
+	private void insertCell(int rowid, byte[] cell) throws IOException {
+		boolean appended = false;
+		if (rowid >= NextRowId) {
+			// a new highest rowid always belongs at the end of the last leaf
+			Page last = pinExclusive(fetchLastPage());
+			try {
+				appended = canInsert(last.getPageNumber(), cell.length);
+				if (appended)
+					insertCellAt(last.getPageNumber(), last.readUnsignedShort(PAGE_CELL_COUNT), cell);
+			} finally {
+				unpinExclusive(last);
+			}
 		}
+		if (!appended) {
+			List<Page> latched = latchPath(rowid, cell.length);
+			try {
+				// internal pages down to the leaf that a split may have to change
+				List<Integer> path = new ArrayList<>();
+				for (Page p : latched)
+					path.add(p.getPageNumber());
+				Page p = latched.get(latched.size() - 1);
+				int page = path.remove(path.size() - 1);
+				int index = findFirstRecord(p, fetchRecordPointers(p), rowid);
+
+				if (canInsert(page, cell.length))
+					insertCellAt(page, index, cell);
+				else
+					splitLeafPage(page, index, cell, path);
+			} finally {
+				for (Page p : latched)
+					unpinExclusive(p);
+			}
+		}
+
+		RowCount++;
+		if (rowid >= NextRowId)
+			NextRowId = rowid + 1;
+		writeHeader();
 	}
 
-	public void insertToMeta(String[] colNames, String[] values) throws Exception {
-		int pageNo = fetchLastPage();
-		int noColmns;
-		Map<Integer, String> dataTypes = new LinkedHashMap<>();
-		// check leaf size
-		if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_tables")) {
-			noColmns = 2;
-			dataTypes.put(1, "int");
-			dataTypes.put(2, "text");
-		} else if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_columns")) {
-			noColmns = 6;
-			dataTypes.put(1, "int");
-			dataTypes.put(2, "text");
-			dataTypes.put(3, "text");
-			dataTypes.put(4, "text");
-			dataTypes.put(5, "int");
-			dataTypes.put(6, "text");
-		} else
-			return;
-		byte[] plDataType = new byte[noColmns - 1];
-		String[] dataTypeStr = new String[noColmns];
-		dataTypes.values().toArray(dataTypeStr);
-		int payLoadSize = getPayloadSize(values, plDataType, dataTypeStr);
-		payLoadSize += 6;
-
-		// change offset calculation??
-		boolean canInsert = canInsert(pageNo, payLoadSize);
-
-		if (canInsert) {
-			RecordCell cell = createCell(pageNo, fetchNextRowID(), (short) payLoadSize, plDataType, values);
-			insertRec(pageNo, payLoadSize, cell);
-		} else {
-			int rowid = fetchNextRowID();
-			int pNo = splitLeafPage(pageNo);
-			RecordCell cell = createCell(pNo, rowid, (short) payLoadSize, plDataType, values);
-			insertRec(pNo, payLoadSize, cell);
-		}
-	}
-
-	public int splitLeafPage(int pageNo) throws IOException {
-		// adding page
-		int parent = findNonLeafNode(pageNo);
-		if (parent == -1) {
-			int pg = (int) (binaryFile.length() / FILESIZE) + 1;
-			binaryFile.setLength(pg * FILESIZE);
-			setNodeHeaders(pg);
-			insertToNonLeaf(pg, pageNo);
-			setAsNextPage(pg, pg + 1);
-
-			binaryFile.setLength((pg + 1) * FILESIZE);
-			setLeafHeaders(pg + 1);
-			setAsNextPage(pageNo, pg + 1);
-			return pg + 1;
-		} else {
-			int pg = (int) (binaryFile.length() / FILESIZE) + 1;
-			insertToNonLeaf(parent, pageNo);
-			setAsNextPage(parent, pg);
-			setAsNextPage(pageNo, pg);
-			return pg;
+	/**
+	 * Descends to the leaf of the rowid latching the pages exclusively, top
+	 * down like the readers so the two can not wait on each other. A page with
+	 * room for one more cell stops a split from going further up, so the
+	 * latches above it are released. Returns the pages still latched, the
+	 * leaf last.
+	 */
+	private List<Page> latchPath(int rowid, int size) throws IOException {
+		List<Page> latched = new ArrayList<>();
+		int page = fetchRootPage();
+		while (true) {
+			Page p = pinExclusive(page);
+			boolean leaf = p.readByte(0) == NodeTypes.LeafNode.getValue();
+			// a split below adds one (page pointer, rowid) cell to its parent
+			if ((leaf ? size : 8) + 2 < freeSpace(p)) {
+				for (Page above : latched)
+					unpinExclusive(above);
+				latched.clear();
+			}
+			latched.add(p);
+			if (leaf)
+				return latched;
+			page = findChildPage(p, rowid);
 		}
 	}
 
-	public void insertToNonLeaf(int page, int pagePtr) throws IOException {
-		if (isLeaf(page))
-			return;
+	/**
+	 * Moves the upper half of the leaf cells to a new right sibling and adds the
+	 * new leaf to the parent. When the cell is appended to the last leaf the
+	 * full page is left as it is and the new leaf only receives the new cell,
+	 * so sequential inserts keep the leaves full.
+	 */
+	private void splitLeafPage(int page, int index, byte[] cell, List<Integer> path) throws IOException {
+		List<byte[]> cells = readCells(page);
+		cells.add(index, cell);
+		int nextPage = fetchNextLeafPage(page);
+
+		int split;
+		if (nextPage == 0xFFFFFFFF && index == cells.size() - 1)
+			split = index;
+		else
+			split = findSplitPoint(cells);
+
+		int newPage = Store.allocatePage();
+		setLeafHeaders(newPage);
+		writeCells(page, cells.subList(0, split));
+		writeCells(newPage, cells.subList(split, cells.size()));
+		setAsNextPage(newPage, nextPage);
+		setAsNextPage(page, newPage);
+		if (nextPage == 0xFFFFFFFF)
+			LastLeafPage = newPage;
+
+		byte[] lastLeft = cells.get(split - 1);
+		int separator = ByteBuffer.wrap(lastLeft).getInt(2);
+		insertToParent(path, page, separator, newPage);
+	}
 
-		int loc = fetchTopRecLoc(page) - 8;
-		binaryFile.seek((page - 1) * FILESIZE + 2);
-		binaryFile.writeShort(loc);
+	/**
+	 * Moves the upper half of the cells of an internal node to a new right
+	 * sibling. The middle cell moves up to the parent, its child becomes the
+	 * right most child of the left node.
+	 */
+	private void splitNodePage(int page, int index, byte[] cell, List<Integer> path) throws IOException {
+		List<byte[]> cells = readCells(page);
+		cells.add(index, cell);
+		int rightMost = fetchNextLeafPage(page);
+
+		int mid = cells.size() / 2;
+		ByteBuffer middle = ByteBuffer.wrap(cells.get(mid));
+
+		int newPage = Store.allocatePage();
+		setNodeHeaders(newPage);
+		writeCells(page, cells.subList(0, mid));
+		setAsNextPage(page, middle.getInt(0));
+		writeCells(newPage, cells.subList(mid + 1, cells.size()));
+		setAsNextPage(newPage, rightMost);
+
+		insertToParent(path, page, middle.getInt(4), newPage);
+	}
 
-		// increment the count on file
-		int count = findNoRecordsInPage(page);
-		binaryFile.seek((page - 1) * FILESIZE + 1);
-		binaryFile.writeByte(count + 1);
+	/**
+	 * Links a page that was split in two into its parent. The parent entry that
+	 * pointed to the left page now points to the new right page, and a new
+	 * (left page, separator) cell goes in front of it. A split root is replaced
+	 * by a new root, which adds a level to the tree.
+	 */
+	private void insertToParent(List<Integer> path, int left, int separator, int right) throws IOException {
+		byte[] cell = ByteBuffer.allocate(8).putInt(left).putInt(separator).array();
+		if (path.isEmpty()) {
+			int root = Store.allocatePage();
+			setNodeHeaders(root);
+			setAsNextPage(root, right);
+			insertCellAt(root, 0, cell);
+			setRootPage(root);
+			return;
+		}
 
-		int topRec = findTopRowId(pagePtr);
-		binaryFile.seek((page - 1) * FILESIZE + loc);
-		binaryFile.writeInt(pagePtr);
-		binaryFile.writeInt(topRec);
+		int parent = path.remove(path.size() - 1);
+		int index;
+		Page p = pin(parent);
+		try {
+			int count = p.readUnsignedShort(PAGE_CELL_COUNT);
+			index = count;
+			for (int i = 0; i < count; i++) {
+				int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (i * 2));
+				if (p.readInt(loc) == left) {
+					p.writeInt(loc, right);
+					index = i;
+					break;
+				}
+			}
+			if (index == count)
+				p.writeInt(PAGE_NEXT, right);
+		} finally {
+			unpin(p);
+		}
 
-		// add the pointer to the new rec to the pointer list.
-		binaryFile.seek((page - 1) * FILESIZE + 8 + ((count == 0) ? 0 : ((count - 1) * 2)));
-		binaryFile.writeShort(loc);
+		if (canInsert(parent, cell.length))
+			insertCellAt(parent, index, cell);
+		else
+			splitNodePage(parent, index, cell, path);
 	}
 
-	private void setAsNextPage(int currPage, int page) throws IOException {
-		binaryFile.seek((currPage - 1) * FILESIZE + 4);
-		binaryFile.writeInt(page);
+	/**
+	 * Index of the cell where the cells above it and the cells below it take
+	 * about the same space.
+	 */
+	private static int findSplitPoint(List<byte[]> cells) {
+		int total = 0;
+		for (byte[] cell : cells)
+			total += cell.length + 2;
+		int size = 0;
+		for (int i = 0; i < cells.size() - 1; i++) {
+			size += cells.get(i).length + 2;
+			if (size >= total / 2)
+				return i + 1;
+		}
+		return cells.size() - 1;
 	}
 
-	private int findNonLeafNode(int page) throws IOException {
-		int i = 1;
-		int lastLeaf = fetchLastPage();
-		while (i < lastLeaf) {
-			if (isNode(i))
-				return i;
-			i++;
+	private void insertCellAt(int page, int index, byte[] cell) throws IOException {
+		Page p = pin(page);
+		try {
+			int count = p.readUnsignedShort(PAGE_CELL_COUNT);
+			int loc = allocate(p, cell.length, true);
+			p.write(loc, cell);
+			for (int i = count; i > index; i--)
+				p.writeShort(PAGE_HEADER_SIZE + (i * 2), p.readUnsignedShort(PAGE_HEADER_SIZE + ((i - 1) * 2)));
+			p.writeShort(PAGE_HEADER_SIZE + (index * 2), loc);
+			p.writeShort(PAGE_CELL_COUNT, count + 1);
+			if (p.readByte(0) == NodeTypes.LeafNode.getValue())
+				Zones.add(p, loc);
+		} finally {
+			unpin(p);
 		}
-		return -1;
 	}
 
-	public void updateToLeaf(String[] colNames, String[] data, int page, int location, int rowid) throws Exception {
-		// +1 byte for number of columns, +6 bytes for the record headers, every column
-		// other than rowid has a byte header
-		Map<Integer, String> dataTypes = getColumnDataTypes();
-		Map<Integer, ColumnDetails> columnDetails = getColumnDetails();
-		Map<Integer, String> isNullable = getColumnNullable();
-		Object[] nullables = isNullable.values().toArray();
-		byte[] dataHeaders = new byte[columnDetails.size() - 1];
-		int headerPointer = 0;
+	/**
+	 * Returns copies of the cells of a page in cell pointer order. Leaf cells
+	 * start with their size, internal node cells are (page pointer, top rowid).
+	 */
+	private List<byte[]> readCells(int page) throws IOException {
+		Page p = pin(page);
+		try {
+			return readCells(p);
+		} finally {
+			unpin(p);
+		}
+	}
 
-		int dataSize = (columnDetails.size() - 1) + 1 + 6;
+	private List<byte[]> readCells(Page p) {
+		boolean leaf = p.readByte(0) == NodeTypes.LeafNode.getValue();
+		List<byte[]> cells = new ArrayList<>();
+		for (int loc : fetchRecordPointers(p)) {
+			byte[] cell = new byte[leaf ? p.readUnsignedShort(loc) : 8];
+			p.read(loc, cell);
+			cells.add(cell);
+		}
+		return cells;
+	}
 
-		for (int i : columnDetails.keySet()) {
-			ColumnDetails col = columnDetails.get(i);
-			if (col.column_name.equalsIgnoreCase("rowid")) {
-				continue;
-			}
-			int indx = findIndx(colNames, col.column_name);
-			if (indx != -1) {
-				dataSize += getDataTypeSize(col.data_type, data[indx].length());
-				dataHeaders[headerPointer++] = (byte) getDataTypeHeader(col.data_type, false, data[indx].length());
-			} else if (indx == -1 && col.is_nullable)
-				dataHeaders[headerPointer++] = (byte) getDataTypeHeader(col.data_type, true, 0);
-			else
-				throw new Exception("Could not find column '" + col.column_name + "'");
+	/**
+	 * Replaces the cells of a page, packing them against the end of the page.
+	 */
+	private void writeCells(int page, List<byte[]> cells) throws IOException {
+		Page p = pin(page);
+		try {
+			packCells(p, cells);
+			if (p.readByte(0) == NodeTypes.LeafNode.getValue())
+				Zones.rebuild(p, fetchRecordPointers(p));
+		} finally {
+			unpin(p);
 		}
+	}
 
-		// check leaf size
-		byte[] plDataType = new byte[columnDetails.size() - 1];
-		String[] dataTypeStr = new String[columnDetails.size()];
-		dataTypes.values().toArray(dataTypeStr);
-		int payLoadSize = getPayloadSize(data, plDataType, dataTypeStr);
-		payLoadSize = payLoadSize + 6;
+	private void packCells(Page p, List<byte[]> cells) {
+		int loc = PageSize;
+		for (int i = 0; i < cells.size(); i++) {
+			byte[] cell = cells.get(i);
+			loc -= cell.length;
+			p.write(loc, cell);
+			p.writeShort(PAGE_HEADER_SIZE + (i * 2), loc);
+		}
+		p.writeShort(PAGE_CELL_COUNT, cells.size());
+		p.writeShort(PAGE_CONTENT_START, loc);
+		p.writeShort(PAGE_FREE_BLOCK, 0);
+		p.writeByte(PAGE_FRAGMENTS, 0);
+	}
 
-		boolean canInsert = canInsert(page, payLoadSize);
+	private void setAsNextPage(int currPage, int page) throws IOException {
+		writeInt(currPage, PAGE_NEXT, page);
+	}
 
-		if (canInsert) {
-			RecordCell cell = createCell(page, rowid, (short) payLoadSize, plDataType, data);
-			insertRec(page, payLoadSize, cell, location);
-		} else {
-			int pNo = splitLeafPage(page);
-			RecordCell cell = createCell(pNo, rowid, (short) payLoadSize, plDataType, data);
-			insertRec(pNo, payLoadSize, cell, location);
+	/**
+	 * Replaces the values of the record with the rowid by the payload.
+	 */
+	public void updateToLeaf(int rowid, PayLoad payload) throws Exception {
+		// earlier updates may have moved the record, look up where it is now
+		int page = findLeafPage(rowid);
+		int location = findRecordLocation(page, rowid);
+		if (location == -1)
+			throw new Exception("Record with rowid " + rowid + " does not exist.");
+
+		PayLoad oldPayload = Indexes.isEmpty() ? null : readRecord(page, location).getPayload();
+
+		RecordCell cell = createCell(page, rowid, payload);
+		if (!insertRec(page, cell, location)) {
+			// no room for the new copy on this page, move the record through a regular insert
+			removeRec(page, location);
+			insertCell(rowid, encodeCell(cell));
 		}
+		for (Index index : Indexes)
+			index.update(oldPayload, payload, rowid);
 	}
 
-	private RecordCell createCell(int pageNo, int primaryKey, short payLoadSize, byte[] dataType, String[] values) {
+	/**
+	 * Parses the literals of the payload columns by the column types, a null
+	 * literal or "null" is a NULL value.
+	 */
+	private PayLoad createPayLoad(String[] literals) {
+		PayLoad payload = new PayLoad();
+		payload.setNumberOfColumns((byte) literals.length);
+		payload.setDataTypes(new byte[literals.length]);
+		for (int i = 0; i < literals.length; i++)
+			payload.setValue(i, Schema.getType(i + 1), literals[i]);
+		return payload;
+	}
+
+	private RecordCell createCell(int pageNo, int primaryKey, PayLoad payload) throws UnknownDataTypeException {
+		// payload size (2), rowid (4), number of columns (1), one type code per column
+		int size = 7 + payload.getNoColumns();
+		for (int i = 0; i < payload.getNoColumns(); i++)
+			size += getSizeByHeader(payload.getTypeCode(i));
+
 		RecordCell cell = new RecordCell();
 		cell.setPageNumber(pageNo);
 		cell.setRowId(primaryKey);
-		cell.setPayLoadSize(payLoadSize);
-
-		PayLoad payload = new PayLoad();
-		payload.setNumberOfColumns(Byte.parseByte(values.length - 1 + ""));
-		payload.setDataTypes(dataType);
-		payload.setData(values);
-
+		cell.setPayLoadSize(size);
+		payload.setSize(size);
 		cell.setPayload(payload);
 
 		return cell;
 	}
 
-	private static int getPayloadSize(String[] values, byte[] plDataType, String[] dataType) throws Exception {
-
-		int size = 1 + dataType.length - 1;
-		for (int i = 1; i < values.length; i++) {
-			// Trouble
-			plDataType[i - 1] = (byte) getDataTypeHeader(dataType[i], false, values[i].length());
-			size = size + getDataTypeSize(dataType[i], values[i].length());
-		}
-
-		return size;
-	}
-
 	private int findIndx(String[] columns, String column) {
 		for (int i = 0; i < columns.length; i++) {
 			if (column.trim().equalsIgnoreCase(columns[i].trim()))
@@ -519,372 +960,373 @@ public class Table {
 		return -1;
 	}
 
-	private int fetchLastPage() throws IOException {
-		int page = 0;
-		int nextPage = 1;
-		while (nextPage != 0xFFFFFFFF) {
-			page = nextPage;
-			nextPage = fetchNextLeafPage(page);
-		}
-		return page;
+	private int fetchLastPage() {
+		return LastLeafPage;
 	}
 
-	public int fetchNextRowID() throws IOException {
-		int page = fetchLastPage();
-		int noRecs = findNoRecordsInPage(page);
-		if (noRecs == 0)
-			return 1;
-		binaryFile.seek(((page - 1) * FILESIZE) + (8 + ((noRecs - 1) * 2)));
-		int lasRecLoc = binaryFile.readShort();
-		binaryFile.seek(((page - 1) * FILESIZE) + lasRecLoc + 2);
-		int recordValue = (int) binaryFile.readInt();
-		int totRecs = totalNoRecords();
-		return ((recordValue > totRecs) ? recordValue : totRecs) + 1;
+	public int fetchNextRowID() {
+		return NextRowId;
+	}
+
+	public int totalNoRecords() {
+		return RowCount;
 	}
 
-	public int totalNoRecords() throws IOException {
-		int page = 1;
-		int count = 0;
-		while (page != 0xFFFFFFFF) {
-			count += findNoRecordsInPage(page);
-			page = fetchNextLeafPage(page);
+	/**
+	 * Returns the records matching the condition, use openCursor to read them
+	 * one at a time instead.
+	 */
+	public Map<Integer, RecordCell> selectRecords(String[] columnNames, String[] condition) throws Exception {
+		Map<Integer, RecordCell> records = new LinkedHashMap<>();
+		try (RecordCursor cursor = openCursor(condition)) {
+			for (RecordCell record = cursor.next(); record != null; record = cursor.next())
+				records.put(record.getRowId(), record);
 		}
-		return count;
+		return records;
 	}
 
-	public int findTopRowId(int page) throws IOException {
-		int noRecs = findNoRecordsInPage(page);
-		if (noRecs == 0)
-			return 1;
-		binaryFile.seek(((page - 1) * FILESIZE) + (8 + ((noRecs - 1) * 2)));
-		int lasRecLoc = binaryFile.readShort();
-		binaryFile.seek((page - 1) * FILESIZE + lasRecLoc + 2);
-		return ((int) binaryFile.readInt());
+	/**
+	 * Opens a cursor over the records matching the condition. The condition is
+	 * compiled once, a rowid range in it seeks the tree, otherwise an index on
+	 * a compared column gives the rowids to visit when it finds few of the
+	 * records. The whole condition is checked on the leaf pages.
+	 */
+	public RecordCursor openCursor(String[] condition) throws Exception {
+		return openCursor(condition, null);
 	}
 
-	public Map<Integer, RecordCell> selectRecords(String[] columnNames, String[] condition) throws Exception {
-		Map<Integer, RecordCell> records = getAllData();
+	/**
+	 * Same as openCursor(condition), the records only carry the payload
+	 * columns flagged in the projection.
+	 */
+	public RecordCursor openCursor(String[] condition, boolean[] projection) throws Exception {
+		return openCursor(condition, projection, 0, -1);
+	}
 
-		if (condition.length > 0) {
-			Map<Integer, RecordCell> filteredRecords = filterData(records, columnNames, condition);
-			return filteredRecords;
-		} else {
-			return records;
-		}
+	/**
+	 * Same as openCursor(condition, projection), the cursor skips the first
+	 * offset matching records and ends after limit records, -1 for no limit.
+	 * The scan stops as soon as it has them.
+	 */
+	public RecordCursor openCursor(String[] condition, boolean[] projection, long offset, long limit)
+			throws Exception {
+		RecordCursor cursor = openCursor(Predicate.compile(condition, Schema), projection, offset == 0 && limit < 0);
+		cursor.skip(offset);
+		cursor.setLimit(limit);
+		return cursor;
 	}
 
-	private Map<Integer, RecordCell> filterData(Map<Integer, RecordCell> records, String[] resultColumns,
-			String[] condns) throws Exception {
-		Map<Integer, RecordCell> filteredRecords = new LinkedHashMap<>();
-		Map<Integer, String> colNames = getColumnNames();
+	private RecordCursor openCursor(Predicate predicate, boolean[] projection, boolean parallel) throws Exception {
+		long[] range = predicate == null ? null : predicate.getRowIdRange();
+		if (range != null)
+			return new RecordCursor(this, range[0], range[1], predicate, projection);
+		RowIdSource rowids = predicate == null || Indexes.isEmpty()
+				|| predicate.selectivity(this) > MAX_LOOKUP_SELECTIVITY ? null : predicate.lookup(this);
+		if (rowids != null)
+			return new RecordCursor(this, rowids, predicate, projection);
+		// without a condition the scan is I/O, decoding and filtering a large table pays off in parallel
+		if (parallel && predicate != null && RecordCursor.scansInParallel(this))
+			return RecordCursor.parallel(this, predicate, projection);
+		return new RecordCursor(this, Long.MIN_VALUE, Long.MAX_VALUE, predicate, projection);
+	}
 
-		int whereOrdlPos = 2;
-		for (Map.Entry<Integer, String> entry : colNames.entrySet()) {
-			String columnName = entry.getValue();
-			if (columnName.equals(condns[0])) {
-				whereOrdlPos = entry.getKey();
+	/**
+	 * Rowids that split the table into at least the given number of ranges, or
+	 * as many as its internal pages allow. They are the separators of the
+	 * highest level of the tree that has enough of them, so every range spans
+	 * about as many leaves.
+	 */
+	long[] splitRowIds(int ranges) throws IOException {
+		List<Integer> level = Collections.singletonList(fetchRootPage());
+		List<Long> separators = new ArrayList<>();
+		while (true) {
+			List<Integer> children = new ArrayList<>();
+			List<Long> levelSeparators = new ArrayList<>();
+			for (int page : level) {
+				Page p = pinShared(page);
+				try {
+					if (p.readByte(0) == NodeTypes.LeafNode.getValue())
+						break;
+					for (int loc : fetchRecordPointers(p)) {
+						children.add(p.readInt(loc));
+						levelSeparators.add((long) p.readInt(loc + 4));
+					}
+					children.add(p.readInt(PAGE_NEXT));
+				} finally {
+					unpinShared(p);
+				}
 			}
+			if (children.isEmpty())
+				break;
+			separators = levelSeparators;
+			if (separators.size() + 1 >= ranges)
+				break;
+			level = children;
 		}
+		long[] bounds = new long[separators.size()];
+		for (int i = 0; i < bounds.length; i++)
+			bounds[i] = separators.get(i);
+		return bounds;
+	}
 
-		for (Map.Entry<Integer, RecordCell> entry : records.entrySet()) {
-			RecordCell cell = entry.getValue();
-			PayLoad payload = cell.getPayload();
-			String[] data = payload.getData();
-			byte[] dataTypeCodes = payload.getDataTypes();
-
-			boolean result;
+	/**
+	 * Page numbers of the leaves in rowid order, for the writer or a handle
+	 * being opened.
+	 */
+	List<Integer> leafPages() throws IOException {
+		List<Integer> pages = new ArrayList<>();
+		for (int page = findLeafPage(Long.MIN_VALUE); page != 0xFFFFFFFF; page = fetchNextLeafPage(page))
+			pages.add(page);
+		return pages;
+	}
 
-			if (whereOrdlPos == 1 && !IsMetaTable)
-				result = checkData((byte) 0x06, String.valueOf(cell.getRowId()), condns);
-			else
-				result = checkData(dataTypeCodes[whereOrdlPos - 2], data[whereOrdlPos - 2], condns);
+	/**
+	 * Descends from the root to the leaf page that holds the rowid, or would
+	 * hold it if it existed. Only for the writer, readers use latchLeaf.
+	 */
+	int findLeafPage(long rowid) throws IOException {
+		int page = fetchRootPage();
+		while (!isLeaf(page))
+			page = findChildPage(page, rowid);
+		return page;
+	}
 
-			if (result)
-				filteredRecords.put(entry.getKey(), entry.getValue());
+	/**
+	 * Same as findLeafPage, returns the leaf pinned and latched shared. Every
+	 * page is latched before the latch of its parent is released, so the
+	 * descent never sees a split half done.
+	 */
+	Page latchLeaf(long rowid) throws IOException {
+		while (true) {
+			int root = fetchRootPage();
+			Page p = pinShared(root);
+			if (root != fetchRootPage()) {
+				// the root was split before it was latched
+				unpinShared(p);
+				continue;
+			}
+			while (p.readByte(0) != NodeTypes.LeafNode.getValue()) {
+				Page child;
+				try {
+					child = pinShared(findChildPage(p, rowid));
+				} finally {
+					unpinShared(p);
+				}
+				p = child;
+			}
+			return p;
 		}
-
-		return filteredRecords;
 	}
 
-	private Map<Integer, RecordCell> getAllData() throws Exception {
-		int page = 0;
-		int nextPage = 1;
-		Map<Integer, RecordCell> dataRecs = new LinkedHashMap<>();
-		while (nextPage != 0xFFFFFFFF) {
-			page = nextPage;
-			dataRecs.putAll(getData(page));
-			nextPage = fetchNextLeafPage(page);
+	private int findChildPage(int page, long rowid) throws IOException {
+		Page p = pin(page);
+		try {
+			return findChildPage(p, rowid);
+		} finally {
+			unpin(p);
 		}
-		return dataRecs;
 	}
 
-	private Map<Integer, RecordCell> getData(int page) throws Exception {
-		Map<Integer, RecordCell> dataRecs = new LinkedHashMap<>();
-		short[] pointerList = fetchRecordPointers(page);
-		for (short recLoc : pointerList) {
-			PayLoad payLoad = new PayLoad();
-
-			binaryFile.seek((page - 1) * FILESIZE + recLoc);
-			payLoad.setSize(binaryFile.readShort());
-
-			int rowId = binaryFile.readInt();
-
-			payLoad.setNumberOfColumns(binaryFile.readByte());
-
-			byte[] dataTypes = new byte[payLoad.getNoColumns()];
-
-			// for (int i = 0; i < payLoad.getNoColumns(); i++) {
-			// dataTypes[i] = binaryFile.readByte();
-			// }
-			binaryFile.read(dataTypes, 0, payLoad.getNoColumns());
-
-			payLoad.setDataTypes(dataTypes);
+	/**
+	 * Binary search over the (page pointer, top rowid) cells of an internal node.
+	 * Returns the first child whose top rowid is not smaller than the rowid, or
+	 * the right most child.
+	 */
+	private int findChildPage(Page p, long rowid) {
+		int low = 0;
+		int high = p.readUnsignedShort(PAGE_CELL_COUNT) - 1;
+		int child = p.readInt(PAGE_NEXT);
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int loc = p.readUnsignedShort(PAGE_HEADER_SIZE + (mid * 2));
+			if (p.readInt(loc + 4) >= rowid) {
+				child = p.readInt(loc);
+				high = mid - 1;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return child;
+	}
 
-			String[] dataArray = new String[payLoad.getNoColumns()];
-			for (int i = 0; i < payLoad.getNoColumns(); i++) {
-				byte head = dataTypes[i];
-				int dataSize = getSizeByHeader(head);
-				// byte[] data = new byte[dataSize];
-				// binaryFile.read(data, 0, dataSize);
-				//
-				// dataArray[i] = new String(data);
-				switch (head) {
-				case 0x00:
-					dataArray[i] = Integer.toString(binaryFile.readByte());
-					dataArray[i] = "null";
-					break;
+	/**
+	 * Returns the location of the record with the rowid in the leaf page, or -1.
+	 */
+	int findRecordLocation(int page, int rowid) throws IOException {
+		Page p = pin(page);
+		try {
+			return findRecordLocation(p, rowid);
+		} finally {
+			unpin(p);
+		}
+	}
 
-				case 0x01:
-					dataArray[i] = Integer.toString(binaryFile.readShort());
-					dataArray[i] = "null";
-					break;
+	int findRecordLocation(Page p, int rowid) {
+		int[] pointerList = fetchRecordPointers(p);
+		int index = findFirstRecord(p, pointerList, rowid);
+		if (index < pointerList.length && p.readInt(pointerList[index] + 2) == rowid)
+			return pointerList[index];
+		return -1;
+	}
 
-				case 0x02:
-					dataArray[i] = Integer.toString(binaryFile.readInt());
-					dataArray[i] = "null";
-					break;
+	/**
+	 * Binary search for the index of the first record pointer whose rowid is not
+	 * smaller than the given rowid, the pointers of a leaf are in rowid order.
+	 */
+	int findFirstRecord(Page p, int[] pointerList, long rowid) {
+		int low = 0;
+		int high = pointerList.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (p.readInt(pointerList[mid] + 2) < rowid)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
 
-				case 0x03:
-					dataArray[i] = Long.toString(binaryFile.readLong());
-					dataArray[i] = "null";
-					break;
+	/**
+	 * Decodes the record at recLoc. Only the payload columns flagged in the
+	 * projection are decoded, the others are left null; a null projection
+	 * decodes every column.
+	 */
+	RecordCell readRecord(Page p, int recLoc, boolean[] projection) throws Exception {
+		PayLoad payLoad = new PayLoad();
 
-				case 0x04:
-					dataArray[i] = Integer.toString(binaryFile.readByte());
-					break;
+		int pos = recLoc;
+		payLoad.setSize(p.readShort(pos));
 
-				case 0x05:
-					dataArray[i] = Integer.toString(binaryFile.readShort());
-					break;
+		int rowId = p.readInt(pos + 2);
 
-				case 0x06:
-					dataArray[i] = Integer.toString(binaryFile.readInt());
-					break;
+		payLoad.setNumberOfColumns(p.readByte(pos + 6));
+		pos += 7;
 
-				case 0x07:
-					dataArray[i] = Long.toString(binaryFile.readLong());
-					break;
+		byte[] dataTypes = new byte[payLoad.getNoColumns()];
+		p.read(pos, dataTypes);
+		pos += dataTypes.length;
 
-				case 0x08:
-					dataArray[i] = String.valueOf(binaryFile.readFloat());
-					break;
+		payLoad.setDataTypes(dataTypes);
 
-				case 0x09:
-					dataArray[i] = String.valueOf(binaryFile.readDouble());
-					break;
+		for (int i = 0; i < payLoad.getNoColumns(); i++) {
+			if (projection == null || (i < projection.length && projection[i]))
+				readValue(p, pos, payLoad, i);
+			pos += getSizeByHeader(payLoad.getTypeCode(i));
+		}
 
-				case 0x0A:
-					long tmp = binaryFile.readLong();
-					Date dateTime = new Date(tmp);
-					DateTimeFormatter formater = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-					dataArray[i] = formater.format((TemporalAccessor) dateTime);
-					break;
+		RecordCell record = new RecordCell(recLoc, p.getPageNumber());
+		record.setPayLoadSize(payLoad.getSize());
+		record.setPayload(payLoad);
+		record.setRowId(rowId);
 
-				case 0x0B:
-					long tmp1 = binaryFile.readLong();
-					Date date = new Date(tmp1);
-					DateTimeFormatter formater1 = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-					dataArray[i] = formater1.format((TemporalAccessor) date);
-					break;
+		return record;
+	}
 
-				default:
-					int len = dataSize;
-					byte[] bytes = new byte[len];
-					binaryFile.read(bytes, 0, len);
-					dataArray[i] = new String(bytes);
-					break;
-				}
-			}
-			payLoad.setData(dataArray);
+	/**
+	 * Type code of a payload column of the record at recLoc.
+	 */
+	static int typeCode(Page p, int recLoc, int column) {
+		return p.readByte(recLoc + 7 + column) & 0xFF;
+	}
 
-			RecordCell record = new RecordCell(recLoc, page);
-			record.setPayLoadSize(payLoad.getSize());
-			record.setPayload(payLoad);
-			record.setRowId(rowId);
+	/**
+	 * Offset of the value of a payload column of the record at recLoc, found
+	 * from the sizes of the columns before it.
+	 */
+	static int valueOffset(Page p, int recLoc, int column) throws UnknownDataTypeException {
+		int pos = recLoc + 7 + p.readByte(recLoc + 6);
+		for (int i = 0; i < column; i++)
+			pos += getSizeByHeader(typeCode(p, recLoc, i));
+		return pos;
+	}
 
-			dataRecs.put(rowId, record);
+	/**
+	 * Reads an integer, date or datetime value.
+	 */
+	static long readLongValue(Page p, int pos, int code) {
+		switch (code) {
+		case 0x04:
+			return p.readByte(pos);
+		case 0x05:
+			return p.readShort(pos);
+		case 0x06:
+			return p.readInt(pos);
+		default:
+			return p.readLong(pos);
 		}
-		return dataRecs;
 	}
 
-	private short[] fetchRecordPointers(int page) throws IOException {
-		int noRecs = findNoRecordsInPage(page);
-		short[] recPointers = new short[noRecs];
-		binaryFile.seek((page - 1) * FILESIZE + 8);
-		for (int i = 0; i < noRecs; i++)
-			recPointers[i] = binaryFile.readShort();
-		return recPointers;
+	/**
+	 * Reads a real or double value.
+	 */
+	static double readDoubleValue(Page p, int pos, int code) {
+		return code == 0x08 ? p.readFloat(pos) : p.readDouble(pos);
 	}
 
-	public boolean checkData(byte headerCode, String data, String[] conds) throws Exception {
-		if (!isNullHeader(headerCode)) {
-			if (headerCode >= 0x04 && headerCode <= 0x07) {
-				Long longData = Long.parseLong(data);
-				switch (conds[1]) {
-				case "=":
-					if (longData == Long.parseLong(conds[2]))
-						return true;
-					break;
-				case ">":
-					if (longData > Long.parseLong(conds[2]))
-						return true;
-					break;
-				case "<":
-					if (longData < Long.parseLong(conds[2]))
-						return true;
-					break;
-				case "<=":
-					if (longData <= Long.parseLong(conds[2]))
-						return true;
-					break;
-				case ">=":
-					if (longData >= Long.parseLong(conds[2]))
-						return true;
-					break;
-				case "<>":
-					if (longData != Long.parseLong(conds[2]))
-						return true;
-					break;
-				default:
-					throw new Exception("Unknown comparision operation '" + conds[2] + "'.");
-				}
-			} else if (headerCode == 0x08 || headerCode == 0x09) {
-				Double doubleData = Double.parseDouble(data);
-				switch (conds[1]) {
-				case "=":
-					if (doubleData == Double.parseDouble(conds[2]))
-						return true;
-					break;
-				case ">":
-					if (doubleData > Double.parseDouble(conds[2]))
-						return true;
-					break;
-				case "<":
-					if (doubleData < Double.parseDouble(conds[2]))
-						return true;
-					break;
-				case "<=":
-					if (doubleData <= Double.parseDouble(conds[2]))
-						return true;
-					break;
-				case ">=":
-					if (doubleData >= Double.parseDouble(conds[2]))
-						return true;
-					break;
-				case "<>":
-					if (doubleData != Double.parseDouble(conds[2]))
-						return true;
-					break;
-				default:
-					throw new Exception("Unknown comparision operation '" + conds[2] + "'.");
-				}
-			} else if (headerCode >= 0x0C) {
-
-				conds[2] = conds[2].replaceAll("'", "");
-				conds[2] = conds[2].replaceAll("\"", "");
-				switch (conds[1]) {
-				case "=":
-					if (data.equalsIgnoreCase(conds[2]))
-						return true;
-					break;
-				case "<>":
-					if (!data.equalsIgnoreCase(conds[2]))
-						return true;
-					break;
-				default:
-					System.out.println("undefined operator return false");
-					return false;
-				}
-			}
-		}
-		return false;
-	}
+	/**
+	 * Reads the value of a payload column from the page into the payload, its
+	 * type code must already be set.
+	 */
+	private static void readValue(Page p, int pos, PayLoad payLoad, int column) {
+		int head = payLoad.getTypeCode(column);
+		switch (head) {
+		case 0x00:
+		case 0x01:
+		case 0x02:
+		case 0x03:
+			break;
 
-	private static int getDataTypeSize(String dataType, int length) {
-		int size = 0;
-		switch (dataType.trim()) {
-		case "tinyint": {
-			size = 1;
+		case 0x04:
+			payLoad.setLong(column, p.readByte(pos));
 			break;
-		}
-		case "smallint": {
-			size = 2;
+
+		case 0x05:
+			payLoad.setLong(column, p.readShort(pos));
 			break;
-		}
-		case "real":
-		case "int": {
-			size = 4;
+
+		case 0x06:
+			payLoad.setLong(column, p.readInt(pos));
 			break;
-		}
 
-		case "double":
-		case "datetime":
-		case "date":
-		case "bigint": {
-			size = 8;
+		case 0x07:
+		case 0x0A:
+		case 0x0B:
+			payLoad.setLong(column, p.readLong(pos));
+			break;
+
+		case 0x08:
+			payLoad.setDouble(column, p.readFloat(pos));
+			break;
+
+		case 0x09:
+			payLoad.setDouble(column, p.readDouble(pos));
+			break;
+
+		default:
+			byte[] bytes = new byte[head - 0x0C];
+			p.read(pos, bytes);
+			payLoad.setText(column, new String(bytes));
 			break;
 		}
-		default: {
-			size = length;
-		}
-		}
-		return size;
 	}
 
-	private static int getDataTypeHeader(String dataType, boolean isNull, int length) throws UnknownDataTypeException {
-		switch (dataType) {
-		case "tinyint": {
-			return isNull ? 0x00 : 0x04;
-		}
-		case "smallint": {
-			return isNull ? 0x01 : 0x05;
-		}
-		case "int": {
-			return isNull ? 0x02 : 0x06;
-		}
-		case "bigint": {
-			return isNull ? 0x03 : 0x07;
-		}
-		case "real": {
-			return isNull ? 0x02 : 0x08;
-		}
-		case "double": {
-			return isNull ? 0x03 : 0x09;
-		}
-		case "datetime": {
-			return isNull ? 0x03 : 0x0A;
-		}
-		case "date": {
-			return isNull ? 0x03 : 0x0B;
-		}
-		case "text": {
-			return 0x0C + length;
-		}
-		default:
-			throw new UnknownDataTypeException(dataType);
+	private int[] fetchRecordPointers(int page) throws IOException {
+		Page p = pin(page);
+		try {
+			return fetchRecordPointers(p);
+		} finally {
+			unpin(p);
 		}
 	}
 
+	int[] fetchRecordPointers(Page p) {
+		int noRecs = p.readUnsignedShort(PAGE_CELL_COUNT);
+		int[] recPointers = new int[noRecs];
+		for (int i = 0; i < noRecs; i++)
+			recPointers[i] = p.readUnsignedShort(PAGE_HEADER_SIZE + (i * 2));
+		return recPointers;
+	}
+
 	private static int getSizeByHeader(int header) throws UnknownDataTypeException {
 		switch (header) {
 		case 0x00:
@@ -920,30 +1362,152 @@ public class Table {
 		return header >= 0x00 && header <= 0x03;
 	}
 
+	/**
+	 * Writes the dirty pages of this table back to its file, the pages stay
+	 * cached.
+	 */
+	public void flush() throws IOException {
+		Store.flush();
+		Zones.flush();
+		for (Index index : Indexes)
+			index.flush();
+	}
+
+	/**
+	 * Rewrites the file with the records in rowid order packed into full
+	 * leaves, dropping the free space that deletes and updates left on the
+	 * pages. The rowids do not change, so the indexes stay valid. Returns the
+	 * number of pages the file shrank by.
+	 *
+	 * The copy and its zone file are not logged, they are forced to disk
+	 * before they replace the files. A checkpoint first empties the log, whose
+	 * records are for the old files.
+	 */
+	public int vacuum() throws Exception {
+		String tempName = FileName + ".vacuum";
+		String zoneFile = ZoneMap.fileName(FileName);
+		String tempZoneFile = ZoneMap.fileName(tempName);
+		WriteAheadLog.exclude(tempName);
+		WriteAheadLog.exclude(tempZoneFile);
+		try {
+			Table copy = new Table();
+			copy.Schema = Schema;
+			copy.createTableFile(tempName, PageSize);
+			copy.setLeafHeaders(1);
+			copy.Zones = ZoneMap.open(tempZoneFile, Schema, PageSize, copy);
+			for (int page = findLeafPage(Long.MIN_VALUE); page != 0xFFFFFFFF; page = fetchNextLeafPage(page))
+				for (byte[] cell : readCells(page))
+					copy.insertCell(ByteBuffer.wrap(cell).getInt(2), cell);
+			copy.NextRowId = NextRowId;
+			copy.writeHeader();
+			copy.closeFile();
+		} finally {
+			WriteAheadLog.include(tempName);
+			WriteAheadLog.include(tempZoneFile);
+		}
+
+		int pageCount = Store.getPageCount();
+		Store.close();
+		Zones.close();
+		BufferPool.checkpoint();
+		Files.move(Paths.get(tempName), Paths.get(FileName), StandardCopyOption.REPLACE_EXISTING);
+		Files.move(Paths.get(tempZoneFile), Paths.get(zoneFile), StandardCopyOption.REPLACE_EXISTING);
+		Store = PageStore.open(FileName, PageSize);
+		readHeader();
+		Zones = ZoneMap.open(zoneFile, Schema, PageSize, this);
+		return pageCount - Store.getPageCount();
+	}
+
+	/**
+	 * Reads again what the handle keeps of the file in memory, after its pages
+	 * were rolled back.
+	 */
+	public void reload() throws IOException {
+		readHeader();
+		for (Index index : Indexes)
+			index.reload();
+	}
+
+	public boolean isClosed() {
+		return Closed;
+	}
+
 	public void closeFile() throws IOException {
-		binaryFile.close();
+		Closed = true;
+		if (Store != null)
+			Store.close();
+		if (Zones != null)
+			Zones.close();
+		for (Index index : Indexes)
+			index.close();
+	}
+
+	/**
+	 * Deletes the record at the location of the leaf page and its index
+	 * entries.
+	 */
+	public void deleteRec(int pageNumber, int location) throws Exception {
+		if (!Indexes.isEmpty()) {
+			RecordCell record = readRecord(pageNumber, location);
+			for (Index index : Indexes)
+				index.delete(record.getPayload(), record.getRowId());
+		}
+		removeRec(pageNumber, location);
+	}
+
+	/**
+	 * Deletes the record with the rowid and its index entries.
+	 */
+	public void deleteRec(int rowid) throws Exception {
+		// a parallel scan collects its records ahead, earlier deletes may have moved them since
+		int page = findLeafPage(rowid);
+		int location = findRecordLocation(page, rowid);
+		if (location == -1)
+			throw new Exception("Record with rowid " + rowid + " does not exist.");
+		deleteRec(page, location);
 	}
 
-	public void deleteRec(int pageNumber, short location) throws IOException {
-		short[] pointers = fetchRecordPointers(pageNumber);
-		int recCount = findNoRecordsInPage(pageNumber);
-		int index = findIndex(pointers, location);
+	private RecordCell readRecord(int page, int location) throws Exception {
+		Page p = pin(page);
+		try {
+			return readRecord(p, location, null);
+		} finally {
+			unpin(p);
+		}
+	}
+
+	private void removeRec(int pageNumber, int location) throws IOException {
+		int index = findIndex(fetchRecordPointers(pageNumber), location);
 		if (index != -1) {
-			binaryFile.seek((pageNumber - 1) * FILESIZE + 8 + (index * 2));
-			for (int i = index + 1; i < pointers.length; i++) {
-				binaryFile.writeShort(pointers[i]);
+			Page p = pinExclusive(pageNumber);
+			try {
+				removeCell(p, index);
+			} finally {
+				unpinExclusive(p);
 			}
-			binaryFile.writeShort(0);
-			setRecordCount(pageNumber, recCount - 1);
+			RowCount--;
+			writeHeader();
 		}
 	}
 
-	private void setRecordCount(int page, int count) throws IOException {
-		binaryFile.seek((page - 1) * FILESIZE + 1);
-		binaryFile.writeByte(count);
+	/**
+	 * Removes the cell pointer at the index of a leaf and frees its cell.
+	 */
+	private void removeCell(Page p, int index) throws IOException {
+		int[] pointers = fetchRecordPointers(p);
+		int location = pointers[index];
+		Zones.remove(p, location);
+		int pos = PAGE_HEADER_SIZE + (index * 2);
+		for (int i = index + 1; i < pointers.length; i++) {
+			p.writeShort(pos, pointers[i]);
+			pos += 2;
+		}
+		p.writeShort(pos, 0);
+		p.writeShort(PAGE_CELL_COUNT, pointers.length - 1);
+		freeCell(p, location, p.readUnsignedShort(location));
 	}
 
-	private int findIndex(short[] array, short item) {
+	private int findIndex(int[] array, int item) {
 		for (int i = 0; i < array.length; i++)
 			if (array[i] == item)
 				return i;
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Registry of open tables. Every table file is opened once and the handle is
+ * shared by all statements using it, with a reference count per handle.
+ * Handles that no statement is using stay open for reuse; beyond
+ * MAX_IDLE_HANDLES the least recently used idle handle is closed.
+ */
+public class TableManager {
+
+	private static final int MAX_IDLE_HANDLES = 32;
+
+	private static final Map<String, Table> tables = new HashMap<>();
+	private static final Map<String, Integer> refCounts = new HashMap<>();
+	/* idle handles, least recently released first */
+	private static final LinkedHashSet<String> idle = new LinkedHashSet<>();
+
+	/**
+	 * Returns the open handle of the table, opening it if needed. Every acquire
+	 * must be matched by a release.
+	 */
+	public static synchronized Table acquire(String path, String tableName) throws Exception {
+		String key = key(path, tableName);
+		Table table = tables.get(key);
+		if (table == null) {
+			table = new Table();
+			try {
+				table.initialize(path, tableName);
+			} catch (Exception e) {
+				table.closeFile();
+				throw e;
+			}
+			tables.put(key, table);
+		}
+		refCounts.merge(key, 1, Integer::sum);
+		idle.remove(key);
+		return table;
+	}
+
+	public static synchronized void release(Table table) throws IOException {
+		String key = key(table.getPath(), table.getTableName());
+		// closed by close() while it was in use
+		if (tables.get(key) != table)
+			return;
+		if (refCounts.merge(key, -1, Integer::sum) > 0)
+			return;
+		refCounts.remove(key);
+		idle.add(key);
+		// closing a handle commits, only the writer may and not before its transaction ends
+		while (idle.size() > MAX_IDLE_HANDLES && DavisBasePrompt.writeLock.isHeldByCurrentThread()
+				&& !Transaction.isActive()) {
+			String oldest = idle.iterator().next();
+			idle.remove(oldest);
+			tables.remove(oldest).closeFile();
+		}
+	}
+
+	/**
+	 * Closes the handle of the table, e.g. before its file is deleted. Later
+	 * statements open a new handle, the ones still using this one are waited
+	 * for.
+	 */
+	public static void close(String path, String tableName) throws Exception {
+		Table table;
+		synchronized (TableManager.class) {
+			String key = key(path, tableName);
+			idle.remove(key);
+			refCounts.remove(key);
+			table = tables.remove(key);
+		}
+		if (table == null)
+			return;
+		table.lockExclusive();
+		try {
+			table.closeFile();
+		} finally {
+			table.unlockExclusive();
+		}
+	}
+
+	/**
+	 * Reloads the open handles after their pages were rolled back. They stay
+	 * open, other sessions may be reading them.
+	 */
+	public static synchronized void reloadAll() throws IOException {
+		for (Table table : tables.values())
+			table.reload();
+	}
+
+	public static synchronized void closeAll() throws IOException {
+		for (Table table : tables.values())
+			table.closeFile();
+		tables.clear();
+		refCounts.clear();
+		idle.clear();
+	}
+
+	private static String key(String path, String tableName) {
+		return path + "/" + tableName;
+	}
+}
@@ -0,0 +1,86 @@
+import java.util.*;
+
+/**
+ * Immutable description of the columns of a table. Built once from
+ * davisbase_columns by the Catalog and shared by every Table opened on it.
+ */
+public final class TableSchema {
+
+	private final String tableName;
+	private final DataTypes[] types;
+	private final Map<Integer, String> columnNames;
+	private final Map<Integer, String> dataTypes;
+	private final Map<Integer, String> nullables;
+	private final Map<Integer, ColumnDetails> columnDetails;
+
+	/**
+	 * @param columns
+	 *            the columns of the table, rowid first, in ordinal order
+	 */
+	public TableSchema(String tableName, List<ColumnDetails> columns) throws UnknownDataTypeException {
+		this.tableName = tableName;
+		this.types = new DataTypes[columns.size()];
+		Map<Integer, String> names = new LinkedHashMap<>();
+		Map<Integer, String> typeNames = new LinkedHashMap<>();
+		Map<Integer, String> nullable = new LinkedHashMap<>();
+		Map<Integer, ColumnDetails> details = new LinkedHashMap<>();
+		for (int i = 0; i < columns.size(); i++) {
+			ColumnDetails col = columns.get(i);
+			types[i] = DataTypes.fromName(col.data_type);
+			names.put(col.ordinal_position, col.column_name);
+			typeNames.put(col.ordinal_position, col.data_type);
+			nullable.put(col.ordinal_position, col.is_nullable ? "YES" : "NO");
+			details.put(col.ordinal_position, col);
+		}
+		this.columnNames = Collections.unmodifiableMap(names);
+		this.dataTypes = Collections.unmodifiableMap(typeNames);
+		this.nullables = Collections.unmodifiableMap(nullable);
+		this.columnDetails = Collections.unmodifiableMap(details);
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public int getColumnCount() {
+		return types.length;
+	}
+
+	/**
+	 * @param index
+	 *            0 based column index, 0 is the rowid
+	 */
+	public DataTypes getType(int index) {
+		return types[index];
+	}
+
+	/**
+	 * Returns the 0 based index of the column, or -1 if the table has no such
+	 * column.
+	 */
+	public int getColumnIndex(String columnName) {
+		int i = 0;
+		for (String name : columnNames.values()) {
+			if (name.equalsIgnoreCase(columnName.trim()))
+				return i;
+			i++;
+		}
+		return -1;
+	}
+
+	public Map<Integer, String> getColumnNames() {
+		return columnNames;
+	}
+
+	public Map<Integer, String> getColumnDataTypes() {
+		return dataTypes;
+	}
+
+	public Map<Integer, String> getColumnNullable() {
+		return nullables;
+	}
+
+	public Map<Integer, ColumnDetails> getColumnDetails() {
+		return columnDetails;
+	}
+}
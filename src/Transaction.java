@@ -0,0 +1,135 @@
+import java.util.*;
+
+/**
+ * Explicit transaction of the session, between BEGIN and COMMIT or ROLLBACK.
+ *
+ * Outside of a transaction every statement commits on its own. Inside one
+ * the statements only change the cached pages, which stay in memory; COMMIT
+ * logs all of them at once with a single force of the log and ROLLBACK
+ * restores their content from before the transaction. A statement that
+ * fails is rolled back, and the transaction it ran in with it.
+ *
+ * Statements that create or remove files can not run in a transaction.
+ * Neither can any statement with -io mmap: the OS may write a mapped page to
+ * the file before COMMIT, and the log has no way to undo it after a crash.
+ *
+ * The session running a transaction is the only writer until it ends, see
+ * DavisBasePrompt.execute. A table it writes is locked exclusively from the
+ * first write until the transaction ends, so statements of other sessions
+ * never read changes that may still be rolled back; they wait for it or
+ * read the tables it did not touch.
+ */
+public class Transaction {
+
+	private static boolean active = false;
+	private static int inserted = 0;
+	/* Page.getChangeCount() when the current statement started. */
+	private static long statementStart = 0;
+	/* Tables written by the transaction, held exclusively until it ends. */
+	private static final List<Table> locked = new ArrayList<>();
+
+	public static synchronized boolean isActive() {
+		return active;
+	}
+
+	public static synchronized void begin() throws Exception {
+		if (active)
+			throw new Exception("A transaction is already in progress.");
+		if (DavisBasePrompt.ioMode.equals("mmap"))
+			throw new Exception("Transactions are not supported with -io mmap.");
+		active = true;
+		inserted = 0;
+	}
+
+	/**
+	 * Makes the changes of the transaction durable, returns the number of
+	 * records it inserted.
+	 */
+	public static int commit() throws Exception {
+		int count;
+		synchronized (Transaction.class) {
+			if (!active)
+				throw new Exception("There is no transaction in progress.");
+			active = false;
+			count = inserted;
+		}
+		try {
+			BufferPool.commit();
+			MappedPageStore.commitAll();
+		} finally {
+			unlockTables();
+		}
+		return count;
+	}
+
+	/**
+	 * Drops the changes of the transaction, or of the last statement when no
+	 * transaction is active. Open tables and the catalog are reloaded, so
+	 * nothing cached from the dropped changes stays in memory.
+	 */
+	public static void rollback() throws Exception {
+		synchronized (Transaction.class) {
+			active = false;
+		}
+		try {
+			BufferPool.rollback();
+			MappedPageStore.rollbackAll();
+			TableManager.reloadAll();
+			Catalog.load();
+		} finally {
+			unlockTables();
+		}
+	}
+
+	/**
+	 * Called by a statement before it writes the table. Inside a transaction
+	 * the table is locked exclusively until the transaction ends, by the
+	 * session thread which keeps it.
+	 */
+	public static void lockForWrite(Table table) {
+		synchronized (Transaction.class) {
+			if (!active || locked.contains(table))
+				return;
+		}
+		table.lockExclusive();
+		synchronized (Transaction.class) {
+			locked.add(table);
+		}
+	}
+
+	private static synchronized void unlockTables() {
+		for (Table table : locked)
+			table.unlockExclusive();
+		locked.clear();
+	}
+
+	/**
+	 * Marks the start of a statement, see abort.
+	 */
+	public static synchronized void startStatement() {
+		statementStart = Page.getChangeCount();
+	}
+
+	/**
+	 * Rolls back after a statement failed. A statement that failed before it
+	 * changed any page leaves the transaction going.
+	 */
+	public static void abort() {
+		synchronized (Transaction.class) {
+			if (Page.getChangeCount() == statementStart)
+				return;
+		}
+		boolean wasActive = isActive();
+		try {
+			rollback();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (wasActive)
+			System.out.println("Transaction rolled back.");
+	}
+
+	static synchronized void recordInserted() {
+		inserted++;
+	}
+}
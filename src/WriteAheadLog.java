@@ -0,0 +1,330 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log of page images. A statement that changes pages appends the new
+ * image of each of them and then a commit record; the statement is durable
+ * once the log is forced past its commit record. The data files themselves
+ * are written later, on eviction or at a checkpoint, in any order.
+ *
+ * Group commit: only one thread forces the log at a time. Statements that
+ * commit while a force is running wait for it and are then covered together
+ * by the next single force. A statement holding DavisBasePrompt.writeLock
+ * only appends its commit record, and waits for the force in awaitCommit
+ * once it released the lock, so the next statement can run meanwhile.
+ *
+ * Records: page (1), file name length (2), file name, page number (4), page
+ * size (4), page image, CRC32 (4); commit (2), CRC32 (4). The CRC covers the
+ * record up to it, a torn record at the end of the log ends the recovery.
+ */
+public class WriteAheadLog {
+
+	private static final int PAGE_RECORD = 1;
+	private static final int COMMIT_RECORD = 2;
+
+	/* Appended records are written to the file once this many are buffered. */
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private static String fileName;
+	private static FileChannel channel;
+
+	/* Files written without the log, e.g. a copy that is swapped in whole. */
+	private static final Set<String> excluded = Collections.synchronizedSet(new HashSet<>());
+
+	/* Guards the buffer and the positions below. */
+	private static final Object appendLock = new Object();
+	/* Held by the thread forcing the log. */
+	private static final Object syncLock = new Object();
+
+	private static ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	/*
+	 * Log positions only grow, truncate moves the start of the file to the
+	 * current end.
+	 */
+	private static long start = 0;
+	/* Log position of the end of the last appended record. */
+	private static long appended = 0;
+	/* Log position up to which the records are in the file. */
+	private static long written = 0;
+	/* Log position up to which the file is forced to disk. */
+	private static long durable = 0;
+	/* Log position of the end of the last commit record. */
+	private static long committed = 0;
+	/* Commit of the statement of the thread that is not forced yet. */
+	private static final ThreadLocal<Long> unforced = new ThreadLocal<>();
+
+	/**
+	 * Replays the committed records of the log, then opens it empty for
+	 * appending.
+	 */
+	public static synchronized void open(String logFileName) throws IOException {
+		fileName = logFileName;
+		File file = new File(fileName);
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		if (file.exists())
+			recover(file);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.truncate(0);
+		channel.force(true);
+		buffer.reset();
+		start = appended = written = durable = committed = 0;
+	}
+
+	/**
+	 * Whether changes to the page go through the log.
+	 */
+	public static boolean covers(Page page) {
+		return channel != null && !excluded.contains(page.getFileName());
+	}
+
+	/**
+	 * Stops logging the pages of the file, they have to be written back to
+	 * it instead.
+	 */
+	public static void exclude(String dataFileName) {
+		excluded.add(dataFileName);
+	}
+
+	public static void include(String dataFileName) {
+		excluded.remove(dataFileName);
+	}
+
+	/**
+	 * Appends the image of a page changed since it was last logged.
+	 */
+	public static void log(Page page) throws IOException {
+		if (!covers(page) || !page.isUnlogged())
+			return;
+		byte[] name = page.getFileName().getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(page.getSize() + name.length + 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(PAGE_RECORD);
+		out.writeShort(name.length);
+		out.write(name);
+		out.writeInt(page.getPageNumber());
+		out.writeInt(page.getSize());
+		ByteBuffer image = page.getBuffer().duplicate();
+		image.clear();
+		byte[] content = new byte[image.remaining()];
+		image.get(content);
+		out.write(content);
+		append(bytes.toByteArray());
+		page.markLogged();
+	}
+
+	/**
+	 * Appends a commit record if pages were logged since the last one, and
+	 * returns once the log is on disk up to it. Under the write lock it
+	 * returns at once, awaitCommit waits for the force.
+	 */
+	public static void commit() throws IOException {
+		if (channel == null)
+			return;
+		long position;
+		synchronized (appendLock) {
+			if (appended > committed)
+				committed = appendRecord(new byte[] { COMMIT_RECORD });
+			position = committed;
+		}
+		if (DavisBasePrompt.writeLock.isHeldByCurrentThread()) {
+			unforced.set(position);
+			return;
+		}
+		sync(position);
+	}
+
+	/**
+	 * Returns once the commits of the thread made under the write lock are
+	 * on disk. Threads that wait together share one force.
+	 */
+	public static void awaitCommit() throws IOException {
+		Long position = unforced.get();
+		if (position == null)
+			return;
+		unforced.remove();
+		if (channel != null)
+			sync(position);
+	}
+
+	/**
+	 * Forces the log up to the last commit record, before a page it covers is
+	 * written to its data file.
+	 */
+	public static void syncCommitted() throws IOException {
+		if (channel == null)
+			return;
+		long position;
+		synchronized (appendLock) {
+			position = committed;
+		}
+		sync(position);
+	}
+
+	/**
+	 * Forces the log up to the position. A thread that finds its position
+	 * already forced by another one returns without touching the file.
+	 */
+	private static void sync(long position) throws IOException {
+		synchronized (syncLock) {
+			if (durable >= position)
+				return;
+			long end;
+			synchronized (appendLock) {
+				end = appended;
+				writeBuffer();
+			}
+			channel.force(false);
+			durable = end;
+		}
+	}
+
+	private static void append(byte[] record) throws IOException {
+		synchronized (appendLock) {
+			appendRecord(record);
+		}
+	}
+
+	private static long appendRecord(byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		buffer.write(record);
+		buffer.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+		appended += record.length + 4;
+		if (buffer.size() >= BUFFER_SIZE)
+			writeBuffer();
+		return appended;
+	}
+
+	private static void writeBuffer() throws IOException {
+		if (buffer.size() == 0)
+			return;
+		ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+		while (bytes.hasRemaining())
+			channel.write(bytes, written - start + bytes.position());
+		written += bytes.limit();
+		buffer.reset();
+	}
+
+	/**
+	 * Bytes in the log, a checkpoint is due when it grows large.
+	 */
+	public static long size() {
+		synchronized (appendLock) {
+			return appended - start;
+		}
+	}
+
+	/**
+	 * Empties the log once every page it holds is in the data files.
+	 */
+	public static void truncate() throws IOException {
+		if (channel == null)
+			return;
+		synchronized (syncLock) {
+			synchronized (appendLock) {
+				buffer.reset();
+				channel.truncate(0);
+				channel.force(true);
+				start = written = durable = committed = appended;
+			}
+		}
+	}
+
+	public static synchronized void close() throws IOException {
+		if (channel == null)
+			return;
+		channel.close();
+		channel = null;
+	}
+
+	/**
+	 * Writes the page images of every committed statement of the log to the
+	 * data files, in log order. Images after the last commit record belong to
+	 * a statement that did not finish and are dropped. Records for files that
+	 * no longer exist are skipped.
+	 */
+	private static void recover(File file) throws IOException {
+		Map<String, RandomAccessFile> files = new HashMap<>();
+		List<PageImage> pending = new ArrayList<>();
+		int replayed = 0;
+		try (RandomAccessFile log = new RandomAccessFile(file, "r")) {
+			ByteBuffer in = ByteBuffer.allocate((int) log.length());
+			log.getChannel().read(in, 0);
+			in.flip();
+			while (in.hasRemaining()) {
+				int start = in.position();
+				int type = in.get();
+				PageImage page = null;
+				if (type == PAGE_RECORD) {
+					if (in.remaining() < 2)
+						break;
+					byte[] name = new byte[in.getShort() & 0xFFFF];
+					if (in.remaining() < name.length + 8)
+						break;
+					in.get(name);
+					int pageNumber = in.getInt();
+					int pageSize = in.getInt();
+					if (pageSize <= 0 || in.remaining() < pageSize)
+						break;
+					byte[] image = new byte[pageSize];
+					in.get(image);
+					page = new PageImage(new String(name, StandardCharsets.UTF_8), pageNumber, image);
+				} else if (type != COMMIT_RECORD) {
+					break;
+				}
+				if (in.remaining() < 4)
+					break;
+				CRC32 crc = new CRC32();
+				crc.update(in.array(), start, in.position() - start);
+				if (in.getInt() != (int) crc.getValue())
+					break;
+
+				if (page != null) {
+					pending.add(page);
+					continue;
+				}
+				for (PageImage image : pending) {
+					if (!new File(image.fileName).exists())
+						continue;
+					RandomAccessFile data = files.get(image.fileName);
+					if (data == null) {
+						data = new RandomAccessFile(image.fileName, "rw");
+						files.put(image.fileName, data);
+					}
+					data.seek((long) image.pageNumber * image.bytes.length);
+					data.write(image.bytes);
+					replayed++;
+				}
+				pending.clear();
+			}
+		} finally {
+			for (RandomAccessFile data : files.values()) {
+				data.getChannel().force(true);
+				data.close();
+			}
+		}
+		if (replayed > 0)
+			System.out.println("Recovered " + replayed + " pages from " + file.getPath() + ".");
+	}
+
+	private static final class PageImage {
+		final String fileName;
+		final int pageNumber;
+		final byte[] bytes;
+
+		PageImage(String fileName, int pageNumber, byte[] bytes) {
+			this.fileName = fileName;
+			this.pageNumber = pageNumber;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Per leaf page summary of the numeric, date and datetime columns of a table:
+ * the smallest and largest value and the number of NULLs of each column. A
+ * filtered scan skips the leaves whose summary shows that no record on them
+ * can match the condition.
+ *
+ * The zones are kept in a .zon file next to the table file, in a slot per
+ * page of the table found from the page number. Its pages go through a
+ * PageStore like those of the table, so a zone is committed, rolled back and
+ * recovered together with the writes it summarizes. Every write to a leaf
+ * updates its zone. Removing a record does not shrink the range, so a zone
+ * may be wider than the values on its page but never narrower, until the
+ * page is rewritten. A table without the file gets it from its leaves when it
+ * is opened.
+ *
+ * A zone is read and changed under the latch of its leaf. Slots of several
+ * leaves share a page of the file, which is latched while a slot is used.
+ */
+public class ZoneMap {
+
+	/* Page 0 of the file header */
+	private static final int FILE_MAGIC = 0x44425A4D;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_PAGE_SIZE = 4;
+	private static final int HEADER_SLOT_SIZE = 8;
+	private static final int HEADER_LENGTH = 12;
+
+	/*
+	 * Slot of a page: known (1) and record count (4), then for each tracked
+	 * column its NULL count (4), integer range (8 + 8) and real range (8 + 8).
+	 * A slot never written reads as not known.
+	 */
+	private static final int SLOT_KNOWN = 0;
+	private static final int SLOT_COUNT = 1;
+	private static final int SLOT_COLUMNS = 5;
+	private static final int COLUMN_SIZE = 36;
+
+	private final String fileName;
+	private final boolean[] tracked;
+	private final int slotSize;
+	private final int pageSize;
+	private final int slotsPerPage;
+	private PageStore store;
+
+	private ZoneMap(String fileName, TableSchema schema, int tablePageSize) {
+		this.fileName = fileName;
+		tracked = new boolean[schema.getColumnCount() - 1];
+		int columns = 0;
+		for (int i = 0; i < tracked.length; i++) {
+			tracked[i] = schema.getType(i + 1) != DataTypes.TEXT;
+			if (tracked[i])
+				columns++;
+		}
+		slotSize = SLOT_COLUMNS + columns * COLUMN_SIZE;
+		// the pages are as large as the table pages, or larger if a slot needs it
+		int size = tablePageSize;
+		while (size < slotSize)
+			size *= 2;
+		pageSize = size;
+		slotsPerPage = pageSize / slotSize;
+	}
+
+	/**
+	 * Name of the zone file of a table file.
+	 */
+	public static String fileName(String tableFileName) {
+		if (tableFileName.endsWith(".tbl"))
+			return tableFileName.substring(0, tableFileName.length() - 4) + ".zon";
+		return tableFileName + ".zon";
+	}
+
+	/**
+	 * Opens the zone file of the table, or writes it from the leaves of the
+	 * table first if it is missing or was written for other columns or pages.
+	 */
+	public static ZoneMap open(String fileName, TableSchema schema, int tablePageSize, Table table)
+			throws IOException {
+		ZoneMap zones = new ZoneMap(fileName, schema, tablePageSize);
+		if (!zones.readHeader())
+			zones.build(table);
+		zones.store = PageStore.open(fileName, zones.pageSize);
+		return zones;
+	}
+
+	private boolean readHeader() throws IOException {
+		if (!Files.exists(Paths.get(fileName)))
+			return false;
+		try (FileChannel file = new RandomAccessFile(fileName, "r").getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while (header.hasRemaining() && file.read(header, header.position()) > 0)
+				;
+			return !header.hasRemaining() && header.getInt(HEADER_MAGIC) == FILE_MAGIC
+					&& header.getInt(HEADER_PAGE_SIZE) == pageSize && header.getInt(HEADER_SLOT_SIZE) == slotSize;
+		}
+	}
+
+	/**
+	 * Writes the file from the leaves of the table. It is written to a copy
+	 * past the buffer pool and forced before it replaces the file: the table
+	 * may be opened by a reader, which must not commit the pages of a writer.
+	 */
+	private void build(Table table) throws IOException {
+		String tempName = fileName + ".build";
+		try (RandomAccessFile file = new RandomAccessFile(tempName, "rw")) {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(pageSize);
+			header.putInt(HEADER_MAGIC, FILE_MAGIC);
+			header.putInt(HEADER_PAGE_SIZE, pageSize);
+			header.putInt(HEADER_SLOT_SIZE, slotSize);
+			channel.write(header, 0);
+			int pages = 1;
+			for (int page : table.leafPages()) {
+				Page p = table.pinShared(page);
+				try {
+					Zone zone = summarize(p, table.fetchRecordPointers(p));
+					if (zone != null)
+						channel.write(ByteBuffer.wrap(encode(zone)), (long) slotPage(page) * pageSize + slotOffset(page));
+				} finally {
+					table.unpinShared(p);
+				}
+				pages = Math.max(pages, slotPage(page) + 1);
+			}
+			file.setLength((long) pages * pageSize);
+			channel.force(true);
+		}
+		BufferPool.discard(fileName);
+		Files.move(Paths.get(tempName), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Returns the zone of the leaf, the records at the pointers are read if it
+	 * is not known.
+	 */
+	public Zone get(Page p, int[] pointers) throws IOException, UnknownDataTypeException {
+		Zone zone = read(p.getPageNumber());
+		if (zone == null) {
+			zone = new Zone();
+			for (int recLoc : pointers)
+				zone.add(p, recLoc);
+		}
+		return zone;
+	}
+
+	/**
+	 * Widens the zone of the page by the record written at recLoc. A record
+	 * that can not be read leaves the zone not known, scans read the page.
+	 */
+	public void add(Page p, int recLoc) throws IOException {
+		Zone zone = read(p.getPageNumber());
+		if (zone == null)
+			return;
+		try {
+			zone.add(p, recLoc);
+		} catch (UnknownDataTypeException e) {
+			zone = null;
+		}
+		write(p.getPageNumber(), zone);
+	}
+
+	/**
+	 * Accounts for the record at recLoc being removed from the page.
+	 */
+	public void remove(Page p, int recLoc) throws IOException {
+		Zone zone = read(p.getPageNumber());
+		if (zone == null)
+			return;
+		zone.remove(p, recLoc);
+		write(p.getPageNumber(), zone);
+	}
+
+	/**
+	 * Writes the zone of a leaf whose records were rewritten, from the records
+	 * at the pointers.
+	 */
+	public void rebuild(Page p, int[] pointers) throws IOException {
+		write(p.getPageNumber(), summarize(p, pointers));
+	}
+
+	private Zone summarize(Page p, int[] pointers) {
+		Zone zone = new Zone();
+		try {
+			for (int recLoc : pointers)
+				zone.add(p, recLoc);
+		} catch (UnknownDataTypeException e) {
+			return null;
+		}
+		return zone;
+	}
+
+	public void flush() throws IOException {
+		store.flush();
+	}
+
+	public void close() throws IOException {
+		store.close();
+	}
+
+	private int slotPage(int page) {
+		return 1 + page / slotsPerPage;
+	}
+
+	private int slotOffset(int page) {
+		return (page % slotsPerPage) * slotSize;
+	}
+
+	private Zone read(int page) throws IOException {
+		int slotPage = slotPage(page);
+		if (slotPage >= store.getPageCount())
+			return null;
+		byte[] slot = new byte[slotSize];
+		Page s = store.pin(slotPage);
+		s.latchShared();
+		try {
+			s.read(slotOffset(page), slot);
+		} finally {
+			s.unlatchShared();
+			store.unpin(s);
+		}
+		return decode(slot);
+	}
+
+	/**
+	 * Writes the zone to the slot of the page, null makes it not known.
+	 */
+	private void write(int page, Zone zone) throws IOException {
+		int slotPage = slotPage(page);
+		while (store.getPageCount() <= slotPage)
+			store.allocatePage();
+		byte[] slot = zone == null ? new byte[slotSize] : encode(zone);
+		Page s = store.pin(slotPage);
+		s.latchExclusive();
+		try {
+			s.write(slotOffset(page), slot);
+		} finally {
+			s.unlatchExclusive();
+			store.unpin(s);
+		}
+	}
+
+	private byte[] encode(Zone zone) {
+		ByteBuffer slot = ByteBuffer.allocate(slotSize);
+		slot.put(SLOT_KNOWN, (byte) 1);
+		slot.putInt(SLOT_COUNT, zone.count);
+		slot.position(SLOT_COLUMNS);
+		for (int i = 0; i < tracked.length; i++) {
+			if (!tracked[i])
+				continue;
+			slot.putInt(zone.nulls[i]);
+			slot.putLong(zone.minLong[i]);
+			slot.putLong(zone.maxLong[i]);
+			slot.putDouble(zone.minDouble[i]);
+			slot.putDouble(zone.maxDouble[i]);
+		}
+		return slot.array();
+	}
+
+	private Zone decode(byte[] bytes) {
+		ByteBuffer slot = ByteBuffer.wrap(bytes);
+		if (slot.get(SLOT_KNOWN) == 0)
+			return null;
+		Zone zone = new Zone();
+		zone.count = slot.getInt(SLOT_COUNT);
+		slot.position(SLOT_COLUMNS);
+		for (int i = 0; i < tracked.length; i++) {
+			if (!tracked[i])
+				continue;
+			zone.nulls[i] = slot.getInt();
+			zone.minLong[i] = slot.getLong();
+			zone.maxLong[i] = slot.getLong();
+			zone.minDouble[i] = slot.getDouble();
+			zone.maxDouble[i] = slot.getDouble();
+		}
+		return zone;
+	}
+
+	public final class Zone {
+		private int count = 0;
+		private final int[] nulls = new int[tracked.length];
+		private final long[] minLong = new long[tracked.length];
+		private final long[] maxLong = new long[tracked.length];
+		private final double[] minDouble = new double[tracked.length];
+		private final double[] maxDouble = new double[tracked.length];
+
+		Zone() {
+			Arrays.fill(minLong, Long.MAX_VALUE);
+			Arrays.fill(maxLong, Long.MIN_VALUE);
+			Arrays.fill(minDouble, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxDouble, Double.NEGATIVE_INFINITY);
+		}
+
+		private void add(Page p, int recLoc) throws UnknownDataTypeException {
+			count++;
+			int columns = Math.min(tracked.length, p.readByte(recLoc + 6));
+			for (int i = 0; i < columns; i++) {
+				if (!tracked[i])
+					continue;
+				int code = Table.typeCode(p, recLoc, i);
+				if (code <= 0x03) {
+					nulls[i]++;
+				} else if (code == 0x08 || code == 0x09) {
+					double value = Table.readDoubleValue(p, Table.valueOffset(p, recLoc, i), code);
+					minDouble[i] = Math.min(minDouble[i], value);
+					maxDouble[i] = Math.max(maxDouble[i], value);
+				} else {
+					long value = Table.readLongValue(p, Table.valueOffset(p, recLoc, i), code);
+					minLong[i] = Math.min(minLong[i], value);
+					maxLong[i] = Math.max(maxLong[i], value);
+				}
+			}
+		}
+
+		private void remove(Page p, int recLoc) {
+			count--;
+			int columns = Math.min(tracked.length, p.readByte(recLoc + 6));
+			for (int i = 0; i < columns; i++)
+				if (tracked[i] && Table.typeCode(p, recLoc, i) <= 0x03)
+					nulls[i]--;
+		}
+
+		/**
+		 * Whether the zone has a range for the payload column.
+		 */
+		public boolean tracks(int column) {
+			return column >= 0 && column < tracked.length && tracked[column];
+		}
+
+		/**
+		 * Whether no record of the page has a value in the column.
+		 */
+		public boolean allNull(int column) {
+			return nulls[column] >= count;
+		}
+
+		/**
+		 * Compares the smallest value of the column with the literal, the column
+		 * must not be all NULL.
+		 */
+		int compareMin(int column, Predicate.Literal value) {
+			if (minDouble[column] <= maxDouble[column])
+				return Double.compare(minDouble[column], value.doubleValue);
+			return Long.compare(minLong[column], value.longValue);
+		}
+
+		/**
+		 * Compares the largest value of the column with the literal, the column
+		 * must not be all NULL.
+		 */
+		int compareMax(int column, Predicate.Literal value) {
+			if (minDouble[column] <= maxDouble[column])
+				return Double.compare(maxDouble[column], value.doubleValue);
+			return Long.compare(maxLong[column], value.longValue);
+		}
+	}
+}